@@ -0,0 +1,47 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/** Thin client for Daemon: runs a command in the daemon of the repository
+ *  in the working directory and prints its output as if run here. Without
+ *  a running daemon the command runs in this process, so that
+ *  "java gitlet.Client ARGS" always behaves like "java gitlet.Main ARGS".
+ *
+ *  @author Chen
+ */
+public class Client {
+
+    /** Usage: java gitlet.Client ARGS, with ARGS as for gitlet.Main. */
+    public static void main(String[] args) {
+        File socket = Daemon.socketFile(new File(System.getProperty("user.dir")));
+        SocketChannel channel = connect(socket);
+        if (channel == null) {
+            Main.main(args);
+            return;
+        }
+        int status;
+        try (channel) {
+            status = Daemon.relay(channel, args);
+        } catch (IOException excp) {
+            System.err.println("Lost connection to the gitlet daemon.");
+            status = 1;
+        }
+        System.exit(status);
+    }
+
+    /** Return a connection to the daemon listening on SOCKET, or null if
+     *  there is none. */
+    private static SocketChannel connect(File socket) {
+        if (!socket.exists()) {
+            return null;
+        }
+        try {
+            return Daemon.connect(socket);
+        } catch (IOException excp) {
+            // Left behind by a daemon that did not stop cleanly.
+            return null;
+        }
+    }
+}
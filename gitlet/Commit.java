@@ -1,17 +1,22 @@
 package gitlet;
 
-import java.io.File;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
-import static gitlet.Utils.writeObject;
-
 /** Represents a gitlet commit object.
  *  This Commit class set up commits by input message, timeStamp, .etc
  *
@@ -23,6 +28,17 @@ public class Commit implements Serializable {
     private static final DateTimeFormatter TIMESTAMP_FORMATTER =
             DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss yyyy Z", Locale.US);
 
+    /** Serialization version of commits written by Java serialization,
+     *  pinned so that those older commits can still be read. */
+    private static final long serialVersionUID = -1900338846062250457L;
+
+    /** Magic number at the head of an encoded commit ("GCMT"). Commits written
+     *  by Java serialization start with 0xACED instead. */
+    private static final int MAGIC = 0x47434d54;
+    /** Version of the encoded commit format. Version 1 commits list every
+     *  tracked file; version 2 commits name a root tree instead. */
+    private static final byte VERSION = 2;
+
     /**
      * Add instance variables beneath.
      *
@@ -41,35 +57,59 @@ public class Commit implements Serializable {
     private final String parent;
     /** Second parent of this Commit. */
     private final String secondParent;
-    /** Map of tracked files (filename and blob ID). */
-    private final Map<String, String> trackedFiles;     // Map<FileName, blobId>
+    /** Map of tracked files (filename and blob ID): a view of the tree,
+     *  made on first use, that shares decoded subtrees with other commits.
+     *  Commits written before trees hold a plain map instead. */
+    private Map<String, String> trackedFiles;     // Map<FileName, blobId>
+    /** The id of the root tree of this Commit, null for commits written
+     *  before trees until it is first asked for. */
+    private String tree;
+    /** The object store this Commit was read from. */
+    private transient ObjectStore store;
 
-    /** Constructor of the initial commit. */
-    public Commit(String message) {
+    /** Constructor of the initial commit, whose TREE is the empty tree. */
+    public Commit(String message, String tree) {
         this.message = message;
         this.parent = null;
-        this.trackedFiles = new HashMap<>();
+        this.tree = tree;
         this.timestamp = ZonedDateTime.ofInstant
                 (Instant.EPOCH, ZoneId.systemDefault()).format(TIMESTAMP_FORMATTER);
         this.id = generateID();
         this.secondParent = null;
+        this.store = ObjectStore.local();
     }
 
-    /** Constructor of ordinary commit. */
+    /** Constructor of ordinary commit, whose files are those of TREE. */
     public Commit(String message, String parent,
-                  String secondParent, Map<String, String> trackedFiles) {
+                  String secondParent, String tree) {
         this.message = message;
         this.parent = parent;
-        this.trackedFiles = new HashMap<>(trackedFiles);
+        this.tree = tree;
         this.timestamp = ZonedDateTime.now().format(TIMESTAMP_FORMATTER);
         this.secondParent = secondParent;
+        this.store = ObjectStore.local();
 
         this.id = generateID();
     }
 
+    /** Constructor of a commit decoded from STORE, which has either a
+     *  TREE or, if it was written before trees, TRACKEDFILES. */
+    private Commit(String message, String timestamp, String id, String parent,
+                   String secondParent, String tree, Map<String, String> trackedFiles,
+                   ObjectStore store) {
+        this.message = message;
+        this.timestamp = timestamp;
+        this.id = id;
+        this.parent = parent;
+        this.secondParent = secondParent;
+        this.tree = tree;
+        this.trackedFiles = trackedFiles;
+        this.store = store;
+    }
+
     private String generateID() {
         String safeParent = parent == null ? "" : parent;
-        return Utils.sha1(message, timestamp, safeParent, trackedFiles.toString());
+        return Utils.sha1(message, timestamp, safeParent, tree);
     }
 
     /** Useful methods of commit. */
@@ -77,14 +117,163 @@ public class Commit implements Serializable {
         return this.id;
     }
 
-    /** Write the commit into COMMIT_DIR. */
+    /** Write the commit into the object store. */
     public void save() {
-        File commitFile = Utils.join(Repository.COMMITS_DIR, this.id);
-        writeObject(commitFile, this);
+        ObjectStore.local().write(ObjectStore.COMMIT, this.id, encode());
     }
 
+    /**
+     * Encode this commit as: magic, version, then message, timestamp, id,
+     * parent, second parent and root tree id as length-prefixed UTF-8
+     * strings (length -1 for null).
+     *
+     * @return The encoded commit
+     */
+    byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            writeString(out, message);
+            writeString(out, timestamp);
+            writeString(out, id);
+            writeString(out, parent);
+            writeString(out, secondParent);
+            writeString(out, getTree());
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw Utils.error("Internal error encoding commit.");
+        }
+    }
+
+    /**
+     * Decode a commit read from the object store. Commits written by
+     * older versions of gitlet, as a list of tracked files or with Java
+     * serialization, are still accepted.
+     * Throws IllegalArgumentException if the commit is malformed.
+     *
+     * @param bytes The stored commit
+     * @param store The object store holding the commit and its trees
+     * @return The commit
+     */
+    static Commit decode(byte[] bytes, ObjectStore store) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (bytes.length < 5 || in.getInt() != MAGIC) {
+            Commit commit = Utils.deserialize(bytes, Commit.class);
+            commit.store = store;
+            return commit;
+        }
+        byte version = in.get();
+        if (version != 1 && version != VERSION) {
+            throw Utils.error("Unknown commit format version.");
+        }
+        try {
+            String message = readString(in);
+            String timestamp = readString(in);
+            String id = readString(in);
+            String parent = readString(in);
+            String secondParent = readString(in);
+            if (version == VERSION) {
+                return new Commit(message, timestamp, id, parent, secondParent,
+                        readString(in), null, store);
+            }
+            int size = in.getInt();
+            // Each file takes at least two lengths.
+            if (size < 0 || size > in.remaining() / 8) {
+                throw new IllegalArgumentException("Corrupt commit object.");
+            }
+            Map<String, String> trackedFiles = new HashMap<>(size * 4 / 3 + 1);
+            for (int i = 0; i < size; i++) {
+                String fileName = readString(in);
+                trackedFiles.put(fileName, readString(in));
+            }
+            return new Commit(message, timestamp, id, parent, secondParent,
+                    null, trackedFiles, store);
+        } catch (BufferUnderflowException excp) {
+            throw new IllegalArgumentException("Corrupt commit object.");
+        }
+    }
+
+    /**
+     * Decode a commit received from another repository. Unlike decode,
+     * only the current format is accepted, so no Java serialization is
+     * run on bytes from the network, and the commit must have the id of
+     * its message, time, parent and tree.
+     * Throws IllegalArgumentException if it does not.
+     *
+     * @param bytes The stored commit
+     * @param store The object store the commit is received into
+     * @return The commit
+     */
+    static Commit decodeVerified(byte[] bytes, ObjectStore store) {
+        if (!isCurrentFormat(bytes)) {
+            throw new IllegalArgumentException("Only commits in the current format can be received.");
+        }
+        Commit commit = decode(bytes, store);
+        if (commit.id == null || commit.message == null || commit.timestamp == null
+                || commit.tree == null || !commit.id.equals(commit.generateID())) {
+            throw new IllegalArgumentException("Commit " + commit.id + " does not match its id.");
+        }
+        try {
+            commit.getEpochSeconds();
+        } catch (DateTimeParseException excp) {
+            throw new IllegalArgumentException("Commit " + commit.id + " has a malformed time.");
+        }
+        return commit;
+    }
+
+    /** Return true if BYTES hold a commit in the current format, whose id
+     *  can be checked against its contents. The id of an older commit is
+     *  the hash of its files in the order of a HashMap, which its stored
+     *  form does not keep. */
+    static boolean isCurrentFormat(byte[] bytes) {
+        return bytes.length >= 5 && ByteBuffer.wrap(bytes).getInt() == MAGIC
+                && bytes[4] == VERSION;
+    }
+
+    /** Write the possibly null string S to OUT, prefixed by its length. */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    /** Read a possibly null length-prefixed string from IN. */
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String s = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    /** Tracked files of this commit, by path; commits are shared through
+     *  the commit cache, so the map cannot be modified. */
     public Map<String, String> getTrackedFiles() {
-        return this.trackedFiles;
+        if (this.trackedFiles == null) {
+            this.trackedFiles = Tree.files(store, tree);
+        }
+        return Collections.unmodifiableMap(this.trackedFiles);
+    }
+
+    /** The id of the root tree of this commit. A commit written before
+     *  trees has the tree of its files written on first use. */
+    public String getTree() {
+        if (this.tree == null) {
+            this.tree = Tree.write(store, trackedFiles);
+        }
+        return this.tree;
     }
 
     public String getMessage() {
@@ -102,4 +291,9 @@ public class Commit implements Serializable {
     public String getTimestamp() {
         return this.timestamp;
     }
+
+    /** Return the time of this commit in seconds since the epoch. */
+    public long getEpochSeconds() {
+        return ZonedDateTime.parse(this.timestamp, TIMESTAMP_FORMATTER).toEpochSecond();
+    }
 }
@@ -0,0 +1,81 @@
+package gitlet;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A process-wide cache of the commits read from object stores, keyed by
+ *  the repository directory and the commit id. Commits never change once
+ *  written, so entries never go stale; the least recently used ones are
+ *  evicted once the cache holds more than its size bound.
+ *
+ *  @author Chen
+ */
+class CommitCache {
+
+    /** System property giving the maximum number of cached commits. */
+    static final String SIZE_PROPERTY = "gitlet.commitCacheSize";
+    /** Maximum number of cached commits when SIZE_PROPERTY is not set. */
+    private static final int DEFAULT_SIZE = 4096;
+
+    /** The cache shared by the whole process. */
+    private static final CommitCache INSTANCE =
+            new CommitCache(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+
+    /** Maximum number of cached commits. */
+    private final int maxSize;
+    /** Cached commits in access order, least recently used first. */
+    private final LinkedHashMap<String, Commit> commits;
+    /** Number of lookups answered from the cache. */
+    private long hits;
+    /** Number of lookups that had to read the object store. */
+    private long misses;
+
+    /** A cache holding at most MAXSIZE commits. */
+    CommitCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.commits = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Commit> eldest) {
+                return size() > CommitCache.this.maxSize;
+            }
+        };
+    }
+
+    /** Get the cache shared by the whole process. */
+    static CommitCache instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a commit, reading it from the object store on a miss.
+     *
+     * @param gitletDir The .gitlet directory of the repository
+     * @param id The id of the commit
+     * @return The commit
+     */
+    synchronized Commit get(File gitletDir, String id) {
+        String key = gitletDir.getAbsolutePath() + File.pathSeparator + id;
+        Commit commit = commits.get(key);
+        if (commit != null) {
+            hits++;
+            return commit;
+        }
+        misses++;
+        commit = ObjectStore.of(gitletDir).readCommit(id);
+        if (maxSize > 0) {
+            commits.put(key, commit);
+        }
+        return commit;
+    }
+
+    /** Return the number of lookups answered from the cache. */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /** Return the number of lookups that read the object store. */
+    synchronized long misses() {
+        return misses;
+    }
+}
@@ -0,0 +1,421 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/** The commit graph of one gitlet repository: the parents, generation
+ *  number and time of each commit, answered without decoding commits.
+ *
+ *  The graph is stored in objects/info/commit-graph and rewritten by
+ *  repack. Its layout is "GCGR", version, count, then count sorted 20-byte
+ *  commit ids, then for each id a fixed-width record of [first parent
+ *  index][second parent index][generation][epoch seconds], with -1 for a
+ *  missing parent. Commits written since the file was last rewritten are
+ *  appended to objects/info/commit-graph.pending as records of [20-byte
+ *  id][20-byte first parent][20-byte second parent][generation][epoch
+ *  seconds], with zeros for a missing parent; once it holds PENDING_LIMIT
+ *  commits the file is rewritten. The file is first written when a commit
+ *  is added to a repository without one. Commits in neither, such as those
+ *  of a repository never written to since, are read from the object store
+ *  and given a generation on the fly.
+ *
+ *  The generation of a root commit is 1, and that of any other commit is
+ *  one more than the largest generation of its parents, so an ancestor
+ *  always has a smaller generation than its descendants.
+ *
+ *  @author Chen
+ */
+class CommitGraph {
+
+    /** Magic number at the head of the file. */
+    private static final int MAGIC = 0x47434752;        // "GCGR"
+    /** Version of the file format. */
+    private static final int VERSION = 1;
+    /** Length of the file header. */
+    private static final int HEADER_LENGTH = 12;
+    /** Length of one record. */
+    private static final int RECORD_LENGTH = 4 + 4 + 4 + 8;
+    /** Length of a raw commit id. */
+    private static final int ID_LENGTH = ObjectId.RAW_LENGTH;
+    /** Length of one pending record. */
+    private static final int PENDING_RECORD_LENGTH = 3 * ID_LENGTH + 4 + 8;
+    /** Number of pending commits at which the file is rewritten. */
+    private static final int PENDING_LIMIT = 512;
+    /** The raw id written for a missing parent in a pending record. */
+    private static final byte[] NO_PARENT = new byte[ID_LENGTH];
+
+    /** The graphs opened so far, keyed by their .gitlet directory. */
+    private static final Map<File, CommitGraph> GRAPHS = new HashMap<>();
+
+    /** The .gitlet directory of the repository. */
+    private final File gitletDir;
+    /** The commit-graph file. */
+    private final File graphFile;
+    /** The file of commits added since the graph file was written. */
+    private final File pendingFile;
+    /** The contents of the graph file, null until loaded. */
+    private ByteBuffer graph;
+    /** Number of commits in the graph file. */
+    private int count;
+    /** Nodes looked up so far, by commit id. */
+    private final Map<String, Node> nodes = new HashMap<>();
+
+    /** One commit in the graph. */
+    static class Node {
+        /** The id of the commit. */
+        final String id;
+        /** The first parent, null if none. */
+        final String parent;
+        /** The second parent, null if none. */
+        final String secondParent;
+        /** The generation number of the commit. */
+        final int generation;
+        /** The time of the commit in seconds since the epoch. */
+        final long time;
+
+        Node(String id, String parent, String secondParent, int generation, long time) {
+            this.id = id;
+            this.parent = parent;
+            this.secondParent = secondParent;
+            this.generation = generation;
+            this.time = time;
+        }
+    }
+
+    private CommitGraph(File gitletDir) {
+        this.gitletDir = gitletDir;
+        this.graphFile = Utils.join(gitletDir, "objects", "info", "commit-graph");
+        this.pendingFile = Utils.join(gitletDir, "objects", "info", "commit-graph.pending");
+    }
+
+    /**
+     * Get the commit graph of a repository.
+     *
+     * @param gitletDir The .gitlet directory of the repository
+     * @return The commit graph
+     */
+    static CommitGraph of(File gitletDir) {
+        return GRAPHS.computeIfAbsent(gitletDir.getAbsoluteFile(), CommitGraph::new);
+    }
+
+    /** Forget the opened graphs, so that they are read again. */
+    static void reset() {
+        GRAPHS.clear();
+    }
+
+    /**
+     * Record a newly written commit, building the graph file first if the
+     * repository has none.
+     *
+     * @param id The id of the commit
+     * @param commit The commit
+     */
+    void add(String id, Commit commit) {
+        if (!load()) {
+            write();
+            return;
+        }
+        if (nodes.containsKey(id) || find(id) >= 0) {
+            return;
+        }
+        String parent = commit.getParent();
+        String secondParent = commit.getSecondParent();
+        int generation = 1 + Math.max(parent == null ? 0 : node(parent).generation,
+                secondParent == null ? 0 : node(secondParent).generation);
+        Node node = new Node(id, parent, secondParent, generation, commit.getEpochSeconds());
+        ByteBuffer record = ByteBuffer.allocate(PENDING_RECORD_LENGTH);
+        ObjectId.fromHex(id).writeTo(record);
+        for (String p : new String[] {parent, secondParent}) {
+            if (p == null) {
+                record.put(NO_PARENT);
+            } else {
+                ObjectId.fromHex(p).writeTo(record);
+            }
+        }
+        record.putInt(generation).putLong(node.time);
+        try (FileOutputStream out = new FileOutputStream(pendingFile, true)) {
+            out.write(record.array());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        nodes.put(id, node);
+        if (pendingFile.length() >= (long) PENDING_LIMIT * PENDING_RECORD_LENGTH) {
+            write();
+        }
+    }
+
+    /**
+     * Get the node of a commit.
+     *
+     * @param id The id of the commit
+     * @return The node of the commit
+     */
+    Node node(String id) {
+        Node node = nodes.get(id);
+        if (node != null) {
+            return node;
+        }
+        int index = find(id);
+        if (index >= 0) {
+            return nodeAt(index);
+        }
+        // Not in the file: give generations to the commits outside it,
+        // parents first.
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(id);
+        while (!stack.isEmpty()) {
+            String currentId = stack.peek();
+            if (nodes.containsKey(currentId)) {
+                stack.pop();
+                continue;
+            }
+            int currentIndex = find(currentId);
+            if (currentIndex >= 0) {
+                nodeAt(currentIndex);
+                stack.pop();
+                continue;
+            }
+            Commit commit = CommitCache.instance().get(gitletDir, currentId);
+            String parent = commit.getParent();
+            String secondParent = commit.getSecondParent();
+            boolean parentsReady = true;
+            for (String p : new String[] {secondParent, parent}) {
+                if (p != null && !nodes.containsKey(p)) {
+                    stack.push(p);
+                    parentsReady = false;
+                }
+            }
+            if (!parentsReady) {
+                continue;
+            }
+            stack.pop();
+            int generation = 1 + Math.max(generationOf(parent), generationOf(secondParent));
+            nodes.put(currentId, new Node(currentId, parent, secondParent,
+                    generation, commit.getEpochSeconds()));
+        }
+        return nodes.get(id);
+    }
+
+    /**
+     * Find the best common ancestor of two commits. Both sides are painted
+     * down in order of decreasing generation, so the first commit reached
+     * from both sides is a common ancestor with the largest generation, and
+     * the walk stops there.
+     *
+     * @param id1 One commit
+     * @param id2 Another commit
+     * @return The id of the common ancestor, null if there is none
+     */
+    String mergeBase(String id1, String id2) {
+        if (id1.equals(id2)) {
+            return id1;
+        }
+        final int fromFirst = 1;
+        final int fromSecond = 2;
+        Map<String, Integer> paint = new HashMap<>();
+        PriorityQueue<Node> queue = new PriorityQueue<>((a, b) -> a.generation != b.generation
+                ? Integer.compare(b.generation, a.generation) : Long.compare(b.time, a.time));
+        paint.put(id1, fromFirst);
+        paint.put(id2, fromSecond);
+        queue.add(node(id1));
+        queue.add(node(id2));
+        while (!queue.isEmpty()) {
+            Node current = queue.remove();
+            int color = paint.get(current.id);
+            if (color == (fromFirst | fromSecond)) {
+                return current.id;
+            }
+            for (String p : new String[] {current.parent, current.secondParent}) {
+                if (p == null) {
+                    continue;
+                }
+                int old = paint.getOrDefault(p, 0);
+                if ((old | color) != old) {
+                    paint.put(p, old | color);
+                    queue.add(node(p));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check whether one commit is an ancestor of another, or the same commit.
+     * Commits with a smaller generation than the ancestor cannot lead to it,
+     * so the walk does not go below them.
+     *
+     * @param ancestorId The possible ancestor
+     * @param id The commit whose history is searched
+     * @return True if ancestorId is in the history of id
+     */
+    boolean isAncestor(String ancestorId, String id) {
+        int floor = node(ancestorId).generation;
+        Deque<String> stack = new ArrayDeque<>();
+        Set<String> visited = new HashSet<>();
+        stack.push(id);
+        while (!stack.isEmpty()) {
+            String currentId = stack.pop();
+            if (currentId.equals(ancestorId)) {
+                return true;
+            }
+            if (!visited.add(currentId)) {
+                continue;
+            }
+            Node current = node(currentId);
+            if (current.generation <= floor) {
+                continue;
+            }
+            if (current.parent != null) {
+                stack.push(current.parent);
+            }
+            if (current.secondParent != null) {
+                stack.push(current.secondParent);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rewrite the commit-graph file to cover every commit in the repository,
+     * and drop the pending commits.
+     */
+    void write() {
+        List<String> ids = ObjectStore.of(gitletDir).ids(ObjectStore.COMMIT);
+        for (String id : ids) {
+            node(id);
+        }
+        ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + ids.size() * (ID_LENGTH + RECORD_LENGTH));
+        out.putInt(MAGIC).putInt(VERSION).putInt(ids.size());
+        for (String id : ids) {
+            ObjectId.fromHex(id).writeTo(out);
+        }
+        for (String id : ids) {
+            Node node = nodes.get(id);
+            out.putInt(indexOf(ids, node.parent));
+            out.putInt(indexOf(ids, node.secondParent));
+            out.putInt(node.generation);
+            out.putLong(node.time);
+        }
+        graphFile.getParentFile().mkdirs();
+        Utils.writeAtomically(graphFile, out.array());
+        pendingFile.delete();
+        graph = null;
+    }
+
+    /** Return the generation of commit ID, or 0 if ID is null. */
+    private int generationOf(String id) {
+        return id == null ? 0 : nodes.get(id).generation;
+    }
+
+    /** Return the position of ID in the sorted IDS, or -1 if ID is null. */
+    private static int indexOf(List<String> ids, String id) {
+        return id == null ? -1 : Collections.binarySearch(ids, id);
+    }
+
+    /** Build, remember and return the node of the commit at INDEX in the file. */
+    private Node nodeAt(int index) {
+        String id = idAt(index);
+        Node node = nodes.get(id);
+        if (node != null) {
+            return node;
+        }
+        int pos = HEADER_LENGTH + count * ID_LENGTH + index * RECORD_LENGTH;
+        int parent = graph.getInt(pos);
+        int secondParent = graph.getInt(pos + 4);
+        node = new Node(id, parent < 0 ? null : idAt(parent),
+                secondParent < 0 ? null : idAt(secondParent),
+                graph.getInt(pos + 8), graph.getLong(pos + 12));
+        nodes.put(id, node);
+        return node;
+    }
+
+    /** Return the id of the commit at INDEX in the file. */
+    private String idAt(int index) {
+        return ObjectId.toHex(graph, HEADER_LENGTH + index * ID_LENGTH);
+    }
+
+    /**
+     * Find a commit in the file by binary search.
+     *
+     * @param id The id of the commit
+     * @return Its index in the file, or -1 if it is not there
+     */
+    private int find(String id) {
+        if (!load() || !ObjectId.isValid(id)) {
+            return -1;
+        }
+        ObjectId key = ObjectId.fromHex(id);
+        int lo = 0, hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = -key.compareTo(graph, HEADER_LENGTH + mid * ID_LENGTH);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Map the graph file into memory if it exists and is not loaded yet,
+     * and read the pending commits into the nodes.
+     *
+     * @return True if there is a graph file
+     */
+    private boolean load() {
+        if (graph != null) {
+            return true;
+        }
+        if (!graphFile.isFile()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(graphFile.toPath(), StandardOpenOption.READ)) {
+            graph = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (graph.getInt(0) != MAGIC || graph.getInt(4) != VERSION) {
+            throw Utils.error("Corrupt commit graph: %s", graphFile.getPath());
+        }
+        count = graph.getInt(8);
+        if (pendingFile.isFile()) {
+            ByteBuffer buf = ByteBuffer.wrap(Utils.readContents(pendingFile));
+            // A partly written last record is ignored.
+            for (int pos = 0; pos + PENDING_RECORD_LENGTH <= buf.limit();
+                    pos += PENDING_RECORD_LENGTH) {
+                String id = ObjectId.toHex(buf, pos);
+                nodes.putIfAbsent(id, new Node(id, pendingParent(buf, pos + ID_LENGTH),
+                        pendingParent(buf, pos + 2 * ID_LENGTH),
+                        buf.getInt(pos + 3 * ID_LENGTH), buf.getLong(pos + 3 * ID_LENGTH + 4)));
+            }
+        }
+        return true;
+    }
+
+    /** Return the parent stored at POS of the pending records in BUF, or
+     *  null for a missing one. */
+    private static String pendingParent(ByteBuffer buf, int pos) {
+        if (Arrays.equals(buf.array(), pos, pos + ID_LENGTH, NO_PARENT, 0, ID_LENGTH)) {
+            return null;
+        }
+        return ObjectId.toHex(buf, pos);
+    }
+}
@@ -0,0 +1,274 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/** A sorted index of the commit ids of one gitlet repository, used to
+ *  resolve abbreviated ids without listing the object store.
+ *
+ *  The index is stored in objects/info/commit-ids: "GCID", version, count,
+ *  a fan-out table of 256 counts where entry b is the number of ids whose
+ *  first byte is at most b, then count sorted 20-byte ids. Commits written
+ *  since the file was last rewritten are appended, unsorted, to
+ *  objects/info/commit-ids.pending; once it holds PENDING_LIMIT ids both
+ *  are merged into a new index file. A repository without an index file
+ *  gets one built from the object store on first lookup.
+ *
+ *  Every commit written through the object store is indexed, so a prefix
+ *  missing from the index is missing from the repository. Only commits
+ *  written by a gitlet older than the index escape it; the index is taken
+ *  as stale, and the object store searched and the index rebuilt, only if
+ *  the tip of a branch is missing from it.
+ *
+ *  @author Chen
+ */
+class CommitIndex {
+
+    /** Magic number at the head of the index file. */
+    private static final int MAGIC = 0x47434944;        // "GCID"
+    /** Version of the index format. */
+    private static final int VERSION = 1;
+    /** Number of entries in the fan-out table. */
+    private static final int FAN_OUT = 256;
+    /** Length of the index file header, including the fan-out table. */
+    private static final int HEADER_LENGTH = 12 + 4 * FAN_OUT;
+    /** Length of a raw commit id. */
+    private static final int ID_LENGTH = ObjectId.RAW_LENGTH;
+    /** Number of pending ids at which they are merged into the index file. */
+    private static final int PENDING_LIMIT = 512;
+
+    /** The indexes opened so far, keyed by their .gitlet directory. */
+    private static final Map<File, CommitIndex> INDEXES = new HashMap<>();
+
+    /** The .gitlet directory of the repository. */
+    private final File gitletDir;
+    /** The sorted index file. */
+    private final File indexFile;
+    /** The file of ids added since the index file was written. */
+    private final File pendingFile;
+    /** The contents of the index file, null until loaded. */
+    private ByteBuffer index;
+    /** Number of ids in the index file. */
+    private int count;
+
+    private CommitIndex(File gitletDir) {
+        this.gitletDir = gitletDir;
+        File infoDir = Utils.join(gitletDir, "objects", "info");
+        this.indexFile = Utils.join(infoDir, "commit-ids");
+        this.pendingFile = Utils.join(infoDir, "commit-ids.pending");
+    }
+
+    /**
+     * Get the commit index of a repository.
+     *
+     * @param gitletDir The .gitlet directory of the repository
+     * @return The commit index
+     */
+    static CommitIndex of(File gitletDir) {
+        return INDEXES.computeIfAbsent(gitletDir.getAbsoluteFile(), CommitIndex::new);
+    }
+
+    /** Forget the opened indexes, so that they are read again. */
+    static void reset() {
+        INDEXES.clear();
+    }
+
+    /**
+     * Find the commits whose ids start with a prefix. The prefix is
+     * located by binary search within its fan-out range, and only the
+     * next id is looked at to tell whether it is unique.
+     *
+     * @param prefix The start of a commit id
+     * @return The matching ids: none, the one match, or two of several
+     */
+    List<String> resolve(String prefix) {
+        List<String> result = new ArrayList<>(search(prefix));
+        if (result.isEmpty() && !coversBranchTips()) {
+            // Commits written by an older gitlet are not indexed.
+            result = ObjectStore.of(gitletDir).idsWithPrefix(ObjectStore.COMMIT, prefix);
+            rebuild();
+        }
+        return result;
+    }
+
+    /** Return true if the commit at the tip of every branch is indexed. */
+    private boolean coversBranchTips() {
+        for (String tip : Repository.findBranchTips(gitletDir)) {
+            if (search(tip).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the indexed commits whose ids start with a prefix, as resolve.
+     *
+     * @param prefix The start of a commit id
+     * @return The matching ids: none, the one match, or two of several
+     */
+    private TreeSet<String> search(String prefix) {
+        TreeSet<String> matches = new TreeSet<>();
+        String lowest = (prefix + "0".repeat(ObjectId.HEX_LENGTH))
+                .substring(0, ObjectId.HEX_LENGTH);
+        if (prefix.length() > ObjectId.HEX_LENGTH || !ObjectId.isValid(lowest)) {
+            return matches;
+        }
+        load();
+        ObjectId key = ObjectId.fromHex(lowest);
+        int lo = rangeStart(prefix);
+        int hi = rangeEnd(prefix);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (key.compareTo(index, idPosition(mid)) > 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < count && i < lo + 2; i++) {
+            String id = ObjectId.toHex(index, idPosition(i));
+            if (id.startsWith(prefix)) {
+                matches.add(id);
+            }
+        }
+        for (String id : pending()) {
+            if (id.startsWith(prefix)) {
+                matches.add(id);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Record a newly written commit. Nothing is recorded if the repository
+     * has no index file yet, as it will be built from the object store.
+     *
+     * @param id The id of the commit
+     */
+    void add(String id) {
+        if (!indexFile.isFile()) {
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(pendingFile, true)) {
+            out.write(ObjectId.fromHex(id).toByteArray());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (pendingFile.length() >= (long) PENDING_LIMIT * ID_LENGTH) {
+            load();
+            TreeSet<String> ids = new TreeSet<>(pending());
+            for (int i = 0; i < count; i++) {
+                ids.add(ObjectId.toHex(index, idPosition(i)));
+            }
+            write(new ArrayList<>(ids));
+        }
+    }
+
+    /** Rewrite the index file to hold every commit in the object store. */
+    void rebuild() {
+        write(ObjectStore.of(gitletDir).ids(ObjectStore.COMMIT));
+    }
+
+    /**
+     * Write a new index file and drop the pending ids.
+     *
+     * @param ids All commit ids, in lexicographic order
+     */
+    private void write(List<String> ids) {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + ids.size() * ID_LENGTH);
+        out.putInt(MAGIC).putInt(VERSION).putInt(ids.size());
+        int[] fanOut = new int[FAN_OUT];
+        for (String id : ids) {
+            fanOut[Integer.parseInt(id.substring(0, 2), 16)]++;
+        }
+        int total = 0;
+        for (int b = 0; b < FAN_OUT; b++) {
+            total += fanOut[b];
+            out.putInt(total);
+        }
+        for (String id : ids) {
+            ObjectId.fromHex(id).writeTo(out);
+        }
+        indexFile.getParentFile().mkdirs();
+        Utils.writeAtomically(indexFile, out.array());
+        pendingFile.delete();
+        index = null;
+    }
+
+    /** Return the ids added since the index file was written. */
+    private List<String> pending() {
+        List<String> ids = new ArrayList<>();
+        if (pendingFile.isFile()) {
+            ByteBuffer buf = ByteBuffer.wrap(Utils.readContents(pendingFile));
+            // A partly written last id is ignored.
+            for (int pos = 0; pos + ID_LENGTH <= buf.limit(); pos += ID_LENGTH) {
+                ids.add(ObjectId.toHex(buf, pos));
+            }
+        }
+        return ids;
+    }
+
+    /** Return the position of the first id that may start with PREFIX. */
+    private int rangeStart(String prefix) {
+        if (prefix.isEmpty()) {
+            return 0;
+        }
+        int firstByte = firstByteBound(prefix, 0);
+        return firstByte == 0 ? 0 : fanOut(firstByte - 1);
+    }
+
+    /** Return the position after the last id that may start with PREFIX. */
+    private int rangeEnd(String prefix) {
+        if (prefix.isEmpty()) {
+            return count;
+        }
+        return fanOut(firstByteBound(prefix, 0xf));
+    }
+
+    /** Return the first byte of PREFIX, taking FILL as its second digit if
+     *  PREFIX has only one. */
+    private static int firstByteBound(String prefix, int fill) {
+        int high = Character.digit(prefix.charAt(0), 16);
+        int low = prefix.length() > 1 ? Character.digit(prefix.charAt(1), 16) : fill;
+        return high << 4 | low;
+    }
+
+    /** Return the number of ids whose first byte is at most B. */
+    private int fanOut(int b) {
+        return index.getInt(12 + 4 * b);
+    }
+
+    /** Return the position of id number I in the index file. */
+    private static int idPosition(int i) {
+        return HEADER_LENGTH + i * ID_LENGTH;
+    }
+
+    /** Map the index file into memory, building it first if there is none. */
+    private void load() {
+        if (index != null) {
+            return;
+        }
+        if (!indexFile.isFile()) {
+            rebuild();
+        }
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+            throw Utils.error("Corrupt commit index: %s", indexFile.getPath());
+        }
+        count = index.getInt(8);
+    }
+}
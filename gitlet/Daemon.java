@@ -0,0 +1,256 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/** A long-running gitlet process serving the commands of one repository
+ *  over the Unix domain socket .gitlet/daemon.sock, so that a command run
+ *  through Client does not pay for starting a JVM, and finds the commit
+ *  cache and the compiled code of earlier commands still warm.
+ *
+ *  A request is the number of arguments followed by each argument in
+ *  modified UTF-8. The reply is a series of frames [tag][length][bytes]
+ *  holding what the command wrote to standard output (tag 1) and standard
+ *  error (tag 2), ended by a frame with tag 0 whose length is the exit
+ *  status. Commands are served one at a time. Everything read from the
+ *  repository files is read again for each command, except commits, which
+ *  never change once written.
+ *
+ *  @author Chen
+ */
+class Daemon {
+
+    /** Name of the socket file in the .gitlet directory. */
+    static final String SOCKET_NAME = "daemon.sock";
+    /** Tag of the frame ending a reply; its length is the exit status. */
+    static final int EXIT = 0;
+    /** Tag of a frame of standard output. */
+    static final int STDOUT = 1;
+    /** Tag of a frame of standard error. */
+    static final int STDERR = 2;
+
+    /** True until a client asks the daemon to stop. */
+    private static boolean running;
+
+    /** Return the socket file of the repository in DIR. */
+    static File socketFile(File dir) {
+        return Utils.join(dir, ".gitlet", SOCKET_NAME);
+    }
+
+    /**
+     * Serve commands until a client sends "daemon stop".
+     */
+    static void serve() {
+        File socket = socketFile(Repository.CWD);
+        checkNotRunning(socket);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket.toPath()));
+            socket.deleteOnExit();
+            running = true;
+            while (running) {
+                try (SocketChannel channel = server.accept()) {
+                    handle(channel);
+                } catch (IOException excp) {
+                    // The client went away; serve the next one.
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            socket.delete();
+        }
+    }
+
+    /**
+     * Start a daemon in a new process and return once it listens.
+     */
+    static void detach() {
+        File socket = socketFile(Repository.CWD);
+        checkNotRunning(socket);
+        if (!Utils.startDetached(() -> isRunning(socket), "daemon")) {
+            throw new GitletException("Cannot start the daemon.");
+        }
+    }
+
+    /**
+     * Ask the daemon of the current repository to stop.
+     */
+    static void stop() {
+        try (SocketChannel channel = connect(socketFile(Repository.CWD))) {
+            relay(channel, new String[] {"daemon", "stop"});
+        } catch (IOException excp) {
+            throw new GitletException("No daemon is running.");
+        }
+    }
+
+    /** Refuse to start a second daemon on SOCKET, and delete the socket
+     *  file left behind by one that did not stop cleanly. */
+    private static void checkNotRunning(File socket) {
+        if (isRunning(socket)) {
+            throw new GitletException("A daemon is already running.");
+        }
+        socket.delete();
+    }
+
+    /** Return true if a daemon listens on SOCKET. */
+    private static boolean isRunning(File socket) {
+        if (!socket.exists()) {
+            return false;
+        }
+        try {
+            connect(socket).close();
+            return true;
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    /**
+     * Connect to a daemon.
+     *
+     * @param socket The socket file of the daemon
+     * @return The connection
+     * @throws IOException If no daemon is listening there
+     */
+    static SocketChannel connect(File socket) throws IOException {
+        return SocketChannel.open(UnixDomainSocketAddress.of(socket.toPath()));
+    }
+
+    /**
+     * Send a command to a daemon and copy its output to this process's.
+     *
+     * @param channel The connection to the daemon
+     * @param args The command
+     * @return The exit status of the command
+     * @throws IOException If the connection fails
+     */
+    static int relay(SocketChannel channel, String[] args) throws IOException {
+        DataOutputStream request = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+        request.writeInt(args.length);
+        for (String arg : args) {
+            request.writeUTF(arg);
+        }
+        request.flush();
+        DataInputStream reply = new DataInputStream(Channels.newInputStream(channel));
+        while (true) {
+            int tag = reply.readByte();
+            int length = reply.readInt();
+            if (tag == EXIT) {
+                System.out.flush();
+                System.err.flush();
+                return length;
+            }
+            byte[] bytes = new byte[length];
+            reply.readFully(bytes);
+            (tag == STDERR ? System.err : System.out).write(bytes, 0, length);
+        }
+    }
+
+    /**
+     * Run one command for a client, sending it the output.
+     *
+     * @param channel The connection to the client
+     * @throws IOException If the connection fails
+     */
+    private static void handle(SocketChannel channel) throws IOException {
+        DataInputStream request = new DataInputStream(Channels.newInputStream(channel));
+        String[] args = new String[request.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = request.readUTF();
+        }
+        DataOutputStream reply = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        PrintStream out = new PrintStream(new FrameOutputStream(reply, STDOUT), true);
+        PrintStream err = new PrintStream(new FrameOutputStream(reply, STDERR), true);
+        int status = 0;
+        System.setOut(out);
+        System.setErr(err);
+        try {
+            if (args.length > 0 && (args[0].equals("batch") || args[0].equals("serve"))) {
+                System.out.println("Cannot run " + args[0] + " in the daemon.");
+            } else if (args.length > 0 && args[0].equals("daemon")) {
+                if (args.length == 2 && args[1].equals("stop")) {
+                    running = false;
+                } else {
+                    System.out.println("A daemon is already running.");
+                }
+            } else {
+                resetCaches();
+                Main.run(args);
+            }
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        } catch (RuntimeException | Error excp) {
+            System.err.print("Exception in thread \"main\" ");
+            excp.printStackTrace();
+            status = 1;
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+            out.flush();
+            err.flush();
+        }
+        reply.writeByte(EXIT);
+        reply.writeInt(status);
+        reply.flush();
+    }
+
+    /** Forget what earlier commands read from the repository files, which
+     *  other processes may have changed since. Commits themselves never
+     *  change, so the commit cache is kept. */
+    static void resetCaches() {
+        StagingIndex.reset();
+        Repository.forgetState();
+        ObjectStore.reset();
+        CommitIndex.reset();
+        CommitGraph.reset();
+    }
+
+    /** An output stream sending what is written to it as reply frames. */
+    private static class FrameOutputStream extends OutputStream {
+        /** The reply stream, shared by the frame streams of one reply. */
+        private final DataOutputStream reply;
+        /** The tag of the frames. */
+        private final int tag;
+
+        FrameOutputStream(DataOutputStream reply, int tag) {
+            this.reply = reply;
+            this.tag = tag;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (reply) {
+                reply.writeByte(tag);
+                reply.writeInt(len);
+                reply.write(bytes, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            reply.flush();
+        }
+    }
+}
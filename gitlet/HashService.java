@@ -0,0 +1,97 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/** Hashes or stores the contents of many files at once on a bounded pool
+ *  of worker threads. The number of workers is the gitlet.hashParallelism system
+ *  property, or the number of available processors if it is not set; a
+ *  parallelism of 1 works on the calling thread.
+ *
+ *  @author Chen
+ */
+class HashService {
+
+    /** System property giving the number of hashing threads. */
+    static final String PARALLELISM_PROPERTY = "gitlet.hashParallelism";
+
+    /** The worker pool, created on first use. */
+    private static ForkJoinPool pool;
+
+    /** Return the number of hashing threads to use. */
+    static int parallelism() {
+        int parallelism = Integer.getInteger(PARALLELISM_PROPERTY,
+                Runtime.getRuntime().availableProcessors());
+        return Math.max(1, parallelism);
+    }
+
+    /**
+     * Hash the contents of files.
+     *
+     * @param files The files to hash
+     * @return The SHA-1 hash of each file, in the same order as FILES
+     */
+    static List<String> hash(List<File> files) {
+        return map(files, HashService::hashFile);
+    }
+
+    /**
+     * Store the contents of files as objects.
+     *
+     * @param store The object store to write to
+     * @param type The type of the objects
+     * @param files The files to store
+     * @return The id of each object, in the same order as FILES
+     */
+    static List<String> store(ObjectStore store, byte type, List<File> files) {
+        return map(files, file -> store.write(type, file));
+    }
+
+    /**
+     * Apply a task to each of several files on the worker pool.
+     *
+     * @param files The files
+     * @param task The task to apply to each file
+     * @return The result for each file, in the same order as FILES
+     */
+    private static List<String> map(List<File> files, Function<File, String> task) {
+        if (files.size() < 2 || parallelism() == 1) {
+            List<String> results = new ArrayList<>(files.size());
+            for (File file : files) {
+                results.add(task.apply(file));
+            }
+            return results;
+        }
+        try {
+            return pool().submit(() -> files.parallelStream()
+                    .map(task)
+                    .collect(Collectors.toList())).get();
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw new IllegalArgumentException(excp.getCause());
+        }
+    }
+
+    /** Return the SHA-1 hash of the contents of FILE. */
+    private static String hashFile(File file) {
+        return Utils.sha1(file);
+    }
+
+    /** Return the worker pool, creating it on first use. */
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism());
+        }
+        return pool;
+    }
+}
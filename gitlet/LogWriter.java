@@ -0,0 +1,148 @@
+package gitlet;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/** Prints commits for log and global-log through one buffered writer,
+ *  applying the options of those commands:
+ *  -n COUNT prints at most COUNT commits, --skip COUNT leaves out the first
+ *  COUNT commits that would be printed, and --since DATE and --until DATE
+ *  keep only commits made in that range. A DATE is "yyyy-MM-dd" or
+ *  "yyyy-MM-dd HH:mm:ss" in the local time zone; both ends are inclusive,
+ *  so --until with a day takes in the whole day.
+ *
+ *  @author Chen
+ */
+class LogWriter implements AutoCloseable {
+
+    /** Size of the output buffer in characters. */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** Format of a DATE with a time of day. */
+    private static final DateTimeFormatter DATE_TIME_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /** The buffered output. */
+    private final PrintWriter out =
+            new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE));
+    /** Maximum number of commits to print. */
+    private int limit = Integer.MAX_VALUE;
+    /** Number of matching commits still to leave out. */
+    private int skip = 0;
+    /** Earliest time of a commit to print, in seconds since the epoch. */
+    private long since = Long.MIN_VALUE;
+    /** Latest time of a commit to print, in seconds since the epoch. */
+    private long until = Long.MAX_VALUE;
+    /** Number of commits printed so far. */
+    private int printed = 0;
+
+    private LogWriter() {
+    }
+
+    /**
+     * Make a writer from the options of a log command.
+     *
+     * @param args The arguments of the command, its name first
+     * @return The writer, or null if the options are malformed
+     */
+    static LogWriter open(String[] args) {
+        LogWriter writer = new LogWriter();
+        try {
+            for (int i = 1; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    return null;
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "-n":
+                        writer.limit = Integer.parseInt(value);
+                        break;
+                    case "--skip":
+                        writer.skip = Integer.parseInt(value);
+                        break;
+                    case "--since":
+                        writer.since = parseDate(value, false);
+                        break;
+                    case "--until":
+                        writer.until = parseDate(value, true);
+                        break;
+                    default:
+                        return null;
+                }
+            }
+        } catch (NumberFormatException | DateTimeParseException excp) {
+            return null;
+        }
+        return writer.limit < 0 || writer.skip < 0 ? null : writer;
+    }
+
+    /**
+     * Print a commit if it is in the time range and not skipped.
+     *
+     * @param commit The commit
+     */
+    void write(Commit commit) {
+        if (isDone()) {
+            return;
+        }
+        if (since != Long.MIN_VALUE || until != Long.MAX_VALUE) {
+            long time = commit.getEpochSeconds();
+            if (time < since || time > until) {
+                return;
+            }
+        }
+        if (skip > 0) {
+            skip--;
+            return;
+        }
+        out.println("===");
+        out.println("commit " + commit.getId());
+        if (commit.getSecondParent() != null) {
+            out.println("Merge: " + commit.getParent().substring(0, 7)
+                    + " " + commit.getSecondParent().substring(0, 7));
+        }
+        out.println("Date: " + commit.getTimestamp());
+        out.println(commit.getMessage());
+        out.println();
+        printed++;
+    }
+
+    /** Return true if no more commits will be printed. */
+    boolean isDone() {
+        return printed >= limit;
+    }
+
+    /** Return true if COMMIT was made before the time range, so that a walk
+     *  down its first parents finds nothing more to print. */
+    boolean isBeforeRange(Commit commit) {
+        return since != Long.MIN_VALUE && commit.getEpochSeconds() < since;
+    }
+
+    /** Flush the output. */
+    @Override
+    public void close() {
+        out.flush();
+    }
+
+    /**
+     * Parse a DATE option.
+     *
+     * @param value "yyyy-MM-dd" or "yyyy-MM-dd HH:mm:ss"
+     * @param endOfDay True to take a day without a time as its last second
+     * @return The time in seconds since the epoch
+     */
+    private static long parseDate(String value, boolean endOfDay) {
+        ZoneId zone = ZoneId.systemDefault();
+        if (value.length() == "yyyy-MM-dd".length()) {
+            LocalDate day = LocalDate.parse(value);
+            return endOfDay ? day.plusDays(1).atStartOfDay(zone).toEpochSecond() - 1
+                    : day.atStartOfDay(zone).toEpochSecond();
+        }
+        return LocalDateTime.parse(value, DATE_TIME_FORMATTER).atZone(zone).toEpochSecond();
+    }
+}
@@ -1,5 +1,15 @@
 package gitlet;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 
 /** Driver class for Gitlet, a subset of the Git version-control system.
@@ -7,13 +17,33 @@ import java.util.Objects;
  */
 public class Main {
 
+    /** System property that makes gitlet print internal counters to
+     *  standard error when it exits. */
+    static final String STATS_PROPERTY = "gitlet.stats";
+
     /** Usage: java gitlet.Main ARGS, where ARGS contains
      *  <COMMAND> <OPERAND1> <OPERAND2> ... 
      */
     public static void main(String[] args) {
+        if (Boolean.getBoolean(STATS_PROPERTY)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(Main::printStats));
+        }
+        try {
+            run(args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        }
+    }
+
+    /**
+     * Runs one command. A command that cannot go on throws a
+     * GitletException whose message is to be printed.
+     *
+     * @param args Argument array passed in from command line
+     */
+    static void run(String[] args) {
         if (args.length == 0) {
-            System.out.println("Please enter a command.");
-            System.exit(0);
+            throwError("Please enter a command.");
         }
         String firstArg = args[0];
         switch(firstArg) {
@@ -23,8 +53,10 @@ public class Main {
                 break;
             case "add":
                 checkInit();
-                validateNumArgs(args, 2);
-                Repository.add(args[1]);
+                if (args.length < 2) {
+                    throwError("Incorrect operands.");
+                }
+                Repository.add(Arrays.asList(args).subList(1, args.length));
                 break;
             case "commit":
                 checkInit();
@@ -38,16 +70,18 @@ public class Main {
                 break;
             case "log":
                 checkInit();
-                validateNumArgs(args, 1);
-                Repository.log();
+                Repository.log(openLogWriter(args));
                 break;
             case "global-log":
                 checkInit();
-                validateNumArgs(args, 1);
-                Repository.globalLog();
+                Repository.globalLog(openLogWriter(args));
                 break;
             case "find":
                 checkInit();
+                if (args.length == 3 && Objects.equals(args[1], "--word")) {
+                    Repository.findWords(args[2]);
+                    break;
+                }
                 validateNumArgs(args, 2);
                 Repository.find(args[1]);
                 break;
@@ -109,25 +143,164 @@ public class Main {
                 break;
             case "push":
                 checkInit();
+                if (args.length == 4 && Objects.equals(args[3], "--dry-run")) {
+                    Repository.push(args[1], args[2], true);
+                    break;
+                }
                 validateNumArgs(args, 3);
-                Repository.push(args[1], args[2]);
+                Repository.push(args[1], args[2], false);
                 break;
             case "fetch":
                 checkInit();
+                if (args.length == 4 && Objects.equals(args[3], "--dry-run")) {
+                    Repository.fetch(args[1], args[2], true);
+                    break;
+                }
                 validateNumArgs(args, 3);
-                Repository.fetch(args[1], args[2]);
+                Repository.fetch(args[1], args[2], false);
                 break;
             case "pull":
                 checkInit();
                 validateNumArgs(args, 3);
                 Repository.pull(args[1], args[2]);
                 break;
+            case "repack":
+                checkInit();
+                validateNumArgs(args, 1);
+                Repository.repack();
+                break;
+            case "migrate-objects":
+                checkInit();
+                validateNumArgs(args, 1);
+                Repository.migrateObjects();
+                break;
+            case "daemon":
+                checkInit();
+                if (args.length == 2 && args[1].equals("stop")) {
+                    Daemon.stop();
+                    break;
+                }
+                if (args.length == 2 && args[1].equals("--detach")) {
+                    Daemon.detach();
+                    break;
+                }
+                validateNumArgs(args, 1);
+                Daemon.serve();
+                break;
+            case "serve":
+                checkInit();
+                if (args.length == 2 && args[1].equals("stop")) {
+                    PackServer.stop();
+                    break;
+                }
+                if (args.length == 3 && args[2].equals("--detach")) {
+                    PackServer.detach(parseAddress(args[1]));
+                    break;
+                }
+                validateNumArgs(args, 2);
+                PackServer.serve(parseAddress(args[1]));
+                break;
+            case "batch":
+                validateNumArgs(args, 1);
+                runBatch();
+                break;
             default:
                 throwError("No command with that name exists.");
                 break;
         }
     }
 
+    /**
+     * Runs the commands read from standard input, one per line, in this
+     * process. A line is split into arguments at whitespace; an argument
+     * holding whitespace is put in double quotes, inside which \" and \\
+     * stand for a quote and a backslash. Blank lines and lines starting
+     * with # are skipped. The error of a command is printed and the next
+     * line is run; any other exception is reported on standard error as
+     * it would be by the JVM. Either way, what the failed command left in
+     * memory is dropped, so that the next one sees the repository as it
+     * is on disk.
+     */
+    private static void runBatch() {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String trimmed = line.strip();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    String[] lineArgs = splitCommandLine(trimmed);
+                    if (lineArgs[0].equals("batch") || lineArgs[0].equals("daemon")
+                            || lineArgs[0].equals("serve")) {
+                        throwError("Cannot run " + lineArgs[0] + " in a batch.");
+                    }
+                    run(lineArgs);
+                } catch (GitletException excp) {
+                    System.out.println(excp.getMessage());
+                    StagingIndex.reset();
+                    Repository.forgetState();
+                } catch (RuntimeException excp) {
+                    System.out.flush();
+                    System.err.print("Exception in thread \"main\" ");
+                    excp.printStackTrace();
+                    StagingIndex.reset();
+                    Repository.forgetState();
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Splits one line of a batch into arguments.
+     *
+     * @param line The line, not blank
+     * @return The arguments
+     */
+    static String[] splitCommandLine(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = new StringBuilder();
+        boolean inArg = false;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    quoted = false;
+                } else if (c == '\\' && i + 1 < line.length()
+                        && (line.charAt(i + 1) == '"' || line.charAt(i + 1) == '\\')) {
+                    arg.append(line.charAt(++i));
+                } else {
+                    arg.append(c);
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (inArg) {
+                    args.add(arg.toString());
+                    arg.setLength(0);
+                    inArg = false;
+                }
+            } else {
+                inArg = true;
+                if (c == '"') {
+                    quoted = true;
+                } else {
+                    arg.append(c);
+                }
+            }
+        }
+        if (quoted) {
+            throwError("Unterminated quote.");
+        }
+        if (inArg) {
+            args.add(arg.toString());
+        }
+        return args.toArray(new String[0]);
+    }
+
     /**
      * Checks the number of arguments versus the expected number,
      * print out error message if they do not match.
@@ -141,6 +314,45 @@ public class Main {
         }
     }
 
+    /**
+     * Parses the [ADDRESS:]PORT operand of serve, print out error message
+     * if it is malformed. Without an address the server listens on the
+     * loopback address only.
+     *
+     * @param arg The operand
+     * @return The address to listen on, with port 0 for any free port
+     */
+    private static InetSocketAddress parseAddress(String arg) {
+        int colon = arg.lastIndexOf(':');
+        try {
+            int port = Integer.parseInt(arg.substring(colon + 1));
+            if (port >= 0 && port <= 65535) {
+                InetAddress address = colon < 0 ? InetAddress.getLoopbackAddress()
+                        : InetAddress.getByName(arg.substring(0, colon));
+                return new InetSocketAddress(address, port);
+            }
+        } catch (NumberFormatException | UnknownHostException excp) {
+            // Fall through to the error.
+        }
+        throwError("Incorrect operands.");
+        return null;
+    }
+
+    /**
+     * Makes the writer for a log command from its options,
+     * print out error message if they are malformed.
+     *
+     * @param args Argument array passed in from command line
+     * @return The writer
+     */
+    private static LogWriter openLogWriter(String[] args) {
+        LogWriter out = LogWriter.open(args);
+        if (out == null) {
+            throwError("Incorrect operands.");
+        }
+        return out;
+    }
+
     /**
      * Checks if this directory is correctly initialized.
      */
@@ -151,10 +363,27 @@ public class Main {
     }
 
     /**
-     * Print out error message and exit program.
+     * Print the internal counters of this run to standard error.
+     */
+    private static void printStats() {
+        CommitCache cache = CommitCache.instance();
+        System.err.println("commit cache: " + cache.hits() + " hits, "
+                + cache.misses() + " misses");
+        System.err.println("tree cache: " + Tree.cacheHits() + " hits, "
+                + Tree.cacheMisses() + " misses");
+        System.err.println("working files: " + StagingIndex.hashedCount() + " hashed, "
+                + StagingIndex.cachedCount() + " unchanged by stat data");
+        System.err.println("checkout: " + Repository.writtenCount() + " files written, "
+                + Repository.upToDateCount() + " up to date, "
+                + Repository.deletedCount() + " deleted");
+        System.err.println("transfer: " + Transfer.copiedObjects() + " objects, "
+                + Transfer.copiedBytes() + " bytes");
+    }
+
+    /**
+     * Stop the command with an error message.
      */
     private static void throwError(String message) {
-        System.out.println(message);
-        System.exit(0);
+        throw new GitletException(message);
     }
 }
@@ -0,0 +1,231 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/** Indexes of the commit messages of one gitlet repository, so that find
+ *  reads a few small files instead of every commit.
+ *
+ *  Two indexes live under objects/info/messages: exact/ maps the SHA-1 hash
+ *  of a whole message, and words/ the hash of each word of a message, to
+ *  the commits carrying it. Each key is a file of appended 20-byte commit
+ *  ids, stored in a subdirectory named by the first two digits of the key
+ *  like loose objects. An index is built from the object store the first
+ *  time it is needed, and from then on every commit written through the
+ *  object store is added to it; the word index therefore only exists in
+ *  repositories where a word search was made. A file named "complete" marks
+ *  a finished index.
+ *
+ *  @author Chen
+ */
+class MessageIndex {
+
+    /** Number of key digits naming the subdirectory of a key file. */
+    private static final int FAN_OUT_DIGITS = 2;
+    /** Name of the file marking a finished index. */
+    private static final String COMPLETE = "complete";
+
+    /** The indexes opened so far, keyed by their .gitlet directory. */
+    private static final Map<File, MessageIndex> INDEXES = new HashMap<>();
+
+    /** The .gitlet directory of the repository. */
+    private final File gitletDir;
+    /** The index of whole messages. */
+    private final File exactDir;
+    /** The index of the words of messages. */
+    private final File wordsDir;
+
+    private MessageIndex(File gitletDir) {
+        this.gitletDir = gitletDir;
+        File messagesDir = Utils.join(gitletDir, "objects", "info", "messages");
+        this.exactDir = Utils.join(messagesDir, "exact");
+        this.wordsDir = Utils.join(messagesDir, "words");
+    }
+
+    /**
+     * Get the message indexes of a repository.
+     *
+     * @param gitletDir The .gitlet directory of the repository
+     * @return The message indexes
+     */
+    static MessageIndex of(File gitletDir) {
+        return INDEXES.computeIfAbsent(gitletDir.getAbsoluteFile(), MessageIndex::new);
+    }
+
+    /**
+     * Find the commits with exactly the given message.
+     *
+     * @param message The message
+     * @return The ids of the commits in lexicographic order
+     */
+    List<String> find(String message) {
+        if (!isComplete(exactDir)) {
+            build(exactDir);
+        }
+        return new ArrayList<>(read(exactDir, Utils.sha1(message)));
+    }
+
+    /**
+     * Find the commits whose messages contain every word of a query.
+     * Words are runs of letters and digits, compared ignoring case.
+     *
+     * @param query The words to look for
+     * @return The ids of the commits in lexicographic order
+     */
+    List<String> findWords(String query) {
+        Set<String> words = words(query);
+        if (words.isEmpty()) {
+            return new ArrayList<>();
+        }
+        if (!isComplete(wordsDir)) {
+            build(wordsDir);
+        }
+        TreeSet<String> result = null;
+        for (String word : words) {
+            TreeSet<String> ids = read(wordsDir, Utils.sha1(word));
+            if (result == null) {
+                result = ids;
+            } else {
+                result.retainAll(ids);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Add a newly written commit to the indexes that exist.
+     *
+     * @param id The id of the commit
+     * @param message The message of the commit
+     */
+    void add(String id, String message) {
+        if (isComplete(exactDir)) {
+            append(exactDir, Utils.sha1(message), id);
+        }
+        if (isComplete(wordsDir)) {
+            for (String word : words(message)) {
+                append(wordsDir, Utils.sha1(word), id);
+            }
+        }
+    }
+
+    /** Rebuild the indexes that exist to cover every commit in the object store. */
+    void rebuild() {
+        for (File dir : new File[] {exactDir, wordsDir}) {
+            if (isComplete(dir)) {
+                build(dir);
+            }
+        }
+    }
+
+    /**
+     * Build one index from every commit in the object store, replacing
+     * whatever was there.
+     *
+     * @param dir The index to build, exactDir or wordsDir
+     */
+    private void build(File dir) {
+        Map<String, List<String>> keys = new HashMap<>();
+        for (String id : ObjectStore.of(gitletDir).ids(ObjectStore.COMMIT)) {
+            String message = CommitCache.instance().get(gitletDir, id).getMessage();
+            if (dir == exactDir) {
+                keys.computeIfAbsent(Utils.sha1(message), k -> new ArrayList<>()).add(id);
+            } else {
+                for (String word : words(message)) {
+                    keys.computeIfAbsent(Utils.sha1(word), k -> new ArrayList<>()).add(id);
+                }
+            }
+        }
+        delete(dir);
+        for (Map.Entry<String, List<String>> key : keys.entrySet()) {
+            List<String> ids = key.getValue();
+            ByteBuffer out = ByteBuffer.allocate(ids.size() * ObjectId.RAW_LENGTH);
+            for (String id : ids) {
+                ObjectId.fromHex(id).writeTo(out);
+            }
+            File keyFile = keyFile(dir, key.getKey());
+            keyFile.getParentFile().mkdirs();
+            Utils.writeContents(keyFile, (Object) out.array());
+        }
+        dir.mkdirs();
+        Utils.writeContents(Utils.join(dir, COMPLETE), "");
+    }
+
+    /** Return true if the index in DIR has been built. */
+    private static boolean isComplete(File dir) {
+        return Utils.join(dir, COMPLETE).isFile();
+    }
+
+    /** Append commit ID to the file of KEY in the index in DIR. */
+    private static void append(File dir, String key, String id) {
+        File keyFile = keyFile(dir, key);
+        keyFile.getParentFile().mkdir();
+        try (FileOutputStream out = new FileOutputStream(keyFile, true)) {
+            out.write(ObjectId.fromHex(id).toByteArray());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the commit ids in the file of KEY in the index in DIR. */
+    private static TreeSet<String> read(File dir, String key) {
+        TreeSet<String> ids = new TreeSet<>();
+        File keyFile = keyFile(dir, key);
+        if (keyFile.isFile()) {
+            ByteBuffer buf = ByteBuffer.wrap(Utils.readContents(keyFile));
+            // A partly written last id is ignored.
+            for (int pos = 0; pos + ObjectId.RAW_LENGTH <= buf.limit();
+                 pos += ObjectId.RAW_LENGTH) {
+                ids.add(ObjectId.toHex(buf, pos));
+            }
+        }
+        return ids;
+    }
+
+    /** Return the file of KEY in the index in DIR. */
+    private static File keyFile(File dir, String key) {
+        return Utils.join(dir, key.substring(0, FAN_OUT_DIGITS), key.substring(FAN_OUT_DIGITS));
+    }
+
+    /** Return the distinct words of TEXT, in lower case. */
+    private static Set<String> words(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    /** Delete the index in DIR. */
+    private static void delete(File dir) {
+        Utils.join(dir, COMPLETE).delete();
+        File[] shards = dir.listFiles();
+        if (shards == null) {
+            return;
+        }
+        for (File shard : shards) {
+            File[] keyFiles = shard.listFiles();
+            if (keyFiles != null) {
+                for (File keyFile : keyFiles) {
+                    keyFile.delete();
+                }
+            }
+            shard.delete();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** The id of a gitlet object in raw form: the 20 bytes of its SHA-1 hash.
+ *  Commands pass ids around as 40-digit hexadecimal strings; the pack
+ *  index, the commit graph and the staging index store and compare them
+ *  raw, and convert through this class.
+ *
+ *  @author Chen
+ */
+final class ObjectId implements Comparable<ObjectId> {
+
+    /** Length of a raw id. */
+    static final int RAW_LENGTH = 20;
+    /** Length of a hexadecimal id. */
+    static final int HEX_LENGTH = 2 * RAW_LENGTH;
+
+    /** Value of each hexadecimal digit by character, -1 for non-digits.
+     *  Only lower-case digits are accepted, as produced by Utils.sha1. */
+    private static final byte[] DIGIT_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(DIGIT_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            DIGIT_VALUES["0123456789abcdef".charAt(i)] = (byte) i;
+        }
+    }
+
+    /** The raw bytes of the id. */
+    private final byte[] raw;
+
+    private ObjectId(byte[] raw) {
+        this.raw = raw;
+    }
+
+    /**
+     * Check whether a string is a complete hexadecimal id.
+     *
+     * @param hex The string
+     * @return True if it has 40 lower-case hexadecimal digits
+     */
+    static boolean isValid(String hex) {
+        if (hex.length() != HEX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HEX_LENGTH; i++) {
+            char c = hex.charAt(i);
+            if (c >= DIGIT_VALUES.length || DIGIT_VALUES[c] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse a hexadecimal id.
+     * Throws IllegalArgumentException if HEX is not a complete id.
+     *
+     * @param hex The 40-digit hexadecimal id
+     * @return The id
+     */
+    static ObjectId fromHex(String hex) {
+        if (!isValid(hex)) {
+            throw new IllegalArgumentException("not an object id: " + hex);
+        }
+        byte[] raw = new byte[RAW_LENGTH];
+        for (int i = 0; i < RAW_LENGTH; i++) {
+            raw[i] = (byte) (DIGIT_VALUES[hex.charAt(2 * i)] << 4
+                    | DIGIT_VALUES[hex.charAt(2 * i + 1)]);
+        }
+        return new ObjectId(raw);
+    }
+
+    /**
+     * Read a raw id.
+     *
+     * @param buf The buffer holding the id
+     * @param pos The position of the id in BUF
+     * @return The id
+     */
+    static ObjectId fromRaw(ByteBuffer buf, int pos) {
+        byte[] raw = new byte[RAW_LENGTH];
+        buf.get(pos, raw);
+        return new ObjectId(raw);
+    }
+
+    /**
+     * Convert a raw id to hexadecimal without making an ObjectId.
+     *
+     * @param buf The buffer holding the id
+     * @param pos The position of the id in BUF
+     * @return The 40-digit hexadecimal id
+     */
+    static String toHex(ByteBuffer buf, int pos) {
+        byte[] raw = new byte[RAW_LENGTH];
+        buf.get(pos, raw);
+        return Utils.toHex(raw);
+    }
+
+    /** Put the raw bytes of this id into BUF at its position. */
+    void writeTo(ByteBuffer buf) {
+        buf.put(raw);
+    }
+
+    /** Return a copy of the raw bytes of this id. */
+    byte[] toByteArray() {
+        return raw.clone();
+    }
+
+    /**
+     * Compare this id with a raw id in a buffer, as unsigned bytes,
+     * without copying it out.
+     *
+     * @param buf The buffer holding the other id
+     * @param pos The position of the other id in BUF
+     * @return Negative, zero or positive as this id is less than, equal
+     *         to or greater than the other
+     */
+    int compareTo(ByteBuffer buf, int pos) {
+        for (int i = 0; i < RAW_LENGTH; i++) {
+            int cmp = Integer.compare(raw[i] & 0xff, buf.get(pos + i) & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public int compareTo(ObjectId that) {
+        return Arrays.compareUnsigned(raw, that.raw);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof ObjectId && Arrays.equals(raw, ((ObjectId) obj).raw);
+    }
+
+    @Override
+    public int hashCode() {
+        // The bytes of a SHA-1 hash are already uniformly distributed.
+        return (raw[0] & 0xff) << 24 | (raw[1] & 0xff) << 16
+                | (raw[2] & 0xff) << 8 | (raw[3] & 0xff);
+    }
+
+    /** Return the 40-digit hexadecimal form of this id. */
+    @Override
+    public String toString() {
+        return Utils.toHex(raw);
+    }
+}
@@ -0,0 +1,978 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/** The object database of one gitlet repository.
+ *  An object is either a loose file under objects/commits, objects/trees or
+ *  objects/blobs, or a record in the pack under objects/pack. Loose objects are looked up
+ *  first, so objects written since the last repack are always visible.
+ *
+ *  A loose object is stored in a subdirectory named by the first two
+ *  digits of its id, under the remaining 38 digits, so that no directory
+ *  grows with the whole repository. Repositories made before this layout
+ *  keep their objects directly in commits/ and blobs/; those are still
+ *  read, and migrateLoose moves them into place.
+ *
+ *  Objects are stored compressed with Deflate, behind a 4-byte magic
+ *  number, at the level given by the gitlet.compression system property
+ *  (1 by default; 0 stores new objects uncompressed). The id of an object is always the
+ *  hash of its uncompressed contents. Objects without the magic number,
+ *  written before compression or with level 0, are read as they are; at
+ *  level 0 an object whose contents start with the magic number is still
+ *  wrapped, uncompressed, in a Deflate stream so it cannot be mistaken for
+ *  a compressed one. An object with the magic number that does not
+ *  inflate cleanly is corrupt.
+ *
+ *  @author Chen
+ */
+class ObjectStore {
+
+    /** Type tag of commit objects. */
+    static final byte COMMIT = 1;
+    /** Type tag of blob objects. */
+    static final byte BLOB = 2;
+    /** Type tag of tree objects. */
+    static final byte TREE = 3;
+
+    /** System property giving the Deflate level (0-9) of new objects. */
+    static final String COMPRESSION_PROPERTY = "gitlet.compression";
+    /** Deflate level when COMPRESSION_PROPERTY is not set: on text it is
+     *  several times faster than the default level for a few percent more
+     *  space. */
+    private static final int DEFAULT_COMPRESSION = Deflater.BEST_SPEED;
+    /** Number of id digits naming the subdirectory of a loose object. */
+    private static final int FAN_OUT_DIGITS = 2;
+    /** Magic number at the head of a compressed object. */
+    private static final byte[] COMPRESSED_MAGIC = {0, 'G', 'Z', 1};
+
+    /** The stores opened so far, keyed by their .gitlet directory. */
+    private static final Map<File, ObjectStore> STORES = new HashMap<>();
+
+    /** The .gitlet directory of the repository. */
+    private final File gitletDir;
+    /** Directory of all objects, also holding objects being written. */
+    private final File objectsDir;
+    /** Directory of loose commits. */
+    private final File commitsDir;
+    /** Directory of loose blobs. */
+    private final File blobsDir;
+    /** Directory of loose trees. */
+    private final File treesDir;
+    /** The pack of this repository. */
+    private final PackFile pack;
+
+    private ObjectStore(File gitletDir) {
+        this.gitletDir = gitletDir;
+        this.objectsDir = Utils.join(gitletDir, "objects");
+        this.commitsDir = Utils.join(objectsDir, "commits");
+        this.blobsDir = Utils.join(objectsDir, "blobs");
+        this.treesDir = Utils.join(objectsDir, "trees");
+        this.pack = new PackFile(Utils.join(objectsDir, "pack"));
+    }
+
+    /**
+     * Get the object store of a repository.
+     *
+     * @param gitletDir The .gitlet directory of the repository
+     * @return The object store
+     */
+    static ObjectStore of(File gitletDir) {
+        return STORES.computeIfAbsent(gitletDir.getAbsoluteFile(), ObjectStore::new);
+    }
+
+    /** Forget the opened stores, so that packs are read again. */
+    static void reset() {
+        STORES.clear();
+    }
+
+    /** Get the object store of the current repository. */
+    static ObjectStore local() {
+        return of(Repository.GITLET_DIR);
+    }
+
+    /**
+     * Check whether an object exists, loose or packed.
+     *
+     * @param type The type of the object
+     * @param id The id of the object
+     * @return True if it exists
+     */
+    boolean contains(byte type, String id) {
+        return findLoose(type, id) != null || pack.contains(type, id);
+    }
+
+    /**
+     * Read the raw contents of an object.
+     * Throws IllegalArgumentException if there is no such object.
+     *
+     * @param type The type of the object
+     * @param id The id of the object
+     * @return The contents of the object
+     */
+    byte[] read(byte type, String id) {
+        File loose = findLoose(type, id);
+        if (loose != null) {
+            return decompress(Utils.readContents(loose));
+        }
+        byte[] contents = pack.read(type, id);
+        if (contents == null) {
+            throw new IllegalArgumentException("no such object: " + id);
+        }
+        return decompress(contents);
+    }
+
+    /**
+     * Write an object as a loose file, unless it already exists.
+     * The object is written to a temporary file in its fan-out
+     * subdirectory and renamed atomically, so that a crash never leaves
+     * a truncated object under a valid id.
+     * A new commit is also added to the commit and message indexes.
+     *
+     * @param type The type of the object
+     * @param id The id of the object
+     * @param contents The raw contents of the object
+     */
+    void write(byte type, String id, byte[] contents) {
+        if (contains(type, id)) {
+            return;
+        }
+        File loose = looseFile(type, id);
+        loose.getParentFile().mkdirs();
+        File temp;
+        try {
+            temp = File.createTempFile("incoming-", ".tmp", loose.getParentFile());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            Utils.writeContents(temp, (Object) compress(contents));
+            Files.move(temp.toPath(), loose.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            temp.delete();
+        }
+        if (type == COMMIT) {
+            indexCommit(id, contents);
+        }
+    }
+
+    /**
+     * Copy a file into the store as a loose object, hashing it on the way,
+     * unless an object with the same id already exists. The file is read
+     * once, through a direct buffer that is hashed, deflated and written
+     * to a temporary file by channel operations, so its bytes are never
+     * copied onto the heap and memory use does not grow with its size.
+     * The temporary file is then renamed atomically to the object.
+     *
+     * @param type The type of the object
+     * @param source The file holding the raw contents of the object
+     * @return The id of the object, the SHA-1 hash of its contents
+     */
+    String write(byte type, File source) {
+        File temp;
+        String id;
+        try {
+            temp = File.createTempFile("incoming-", ".tmp", objectsDir);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            int level = compressionLevel();
+            try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                ByteBuffer head = ByteBuffer.allocate(COMPRESSED_MAGIC.length);
+                in.read(head, 0);
+                if (level == 0 && !Arrays.equals(head.array(), COMPRESSED_MAGIC)) {
+                    id = Utils.sha1(in, out);
+                } else {
+                    out.write(ByteBuffer.wrap(COMPRESSED_MAGIC));
+                    try (DeflatingChannel deflated = new DeflatingChannel(out, level)) {
+                        id = Utils.sha1(in, deflated);
+                    }
+                }
+            }
+            if (!contains(type, id)) {
+                File loose = looseFile(type, id);
+                loose.getParentFile().mkdirs();
+                Files.move(temp.toPath(), loose.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                if (type == COMMIT) {
+                    indexCommit(id, Utils.readContents(source));
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            temp.delete();
+        }
+        return id;
+    }
+
+    /** A channel that deflates what is written to it into another channel,
+     *  working on direct buffers throughout. Closing it finishes the
+     *  compressed stream but leaves the other channel open. */
+    private static class DeflatingChannel implements WritableByteChannel {
+        /** The channel receiving the compressed bytes. */
+        private final WritableByteChannel out;
+        /** The compressor. */
+        private final Deflater deflater;
+        /** Empty input, set once SRC is consumed. */
+        private static final byte[] NO_INPUT = new byte[0];
+        /** Compressed bytes waiting to be written to OUT. */
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+        /** True once closed. */
+        private boolean closed;
+
+        DeflatingChannel(WritableByteChannel out, int level) {
+            this.out = out;
+            this.deflater = new Deflater(level);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            deflater.setInput(src);
+            while (!deflater.needsInput()) {
+                drain();
+            }
+            // The caller reuses SRC, so the deflater must not keep it.
+            deflater.setInput(NO_INPUT);
+            return n;
+        }
+
+        /** Deflate into the buffer and write what it holds to OUT. */
+        private void drain() throws IOException {
+            deflater.deflate(buf);
+            buf.flip();
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            buf.clear();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    drain();
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Copy an object into another store in its stored form, unless it is
+     * there already. The object is not decoded: a loose object is
+     * hard-linked into the other store when both are on one file system,
+     * or else copied with transferTo, and a packed object is transferred
+     * straight out of the pack. Objects never change once written, so a
+     * link is safe to share.
+     * Throws IllegalArgumentException if there is no such object.
+     *
+     * @param to The store to copy into
+     * @param type The type of the object
+     * @param id The id of the object
+     * @return The stored size of the object, 0 if TO already had it
+     */
+    long copyTo(ObjectStore to, byte type, String id) {
+        if (to.contains(type, id)) {
+            return 0;
+        }
+        File target = to.looseFile(type, id);
+        target.getParentFile().mkdirs();
+        File loose = findLoose(type, id);
+        long size;
+        try {
+            if (loose != null && link(loose, target)) {
+                size = loose.length();
+            } else {
+                size = transferTo(to, type, id, loose, target);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (type == COMMIT) {
+            to.indexCommit(id, to.read(COMMIT, id));
+        }
+        return size;
+    }
+
+    /**
+     * Hard-link a loose object into another store.
+     *
+     * @param loose The loose file of the object
+     * @param target The file of the object in the other store
+     * @return True if linked, false if the file systems cannot share it
+     */
+    private static boolean link(File loose, File target) {
+        try {
+            Files.createLink(target.toPath(), loose.toPath());
+            return true;
+        } catch (FileAlreadyExistsException excp) {
+            return true;
+        } catch (IOException | UnsupportedOperationException excp) {
+            return false;
+        }
+    }
+
+    /**
+     * Copy the stored form of an object into a temporary file of another
+     * store with transferTo, force it to disk, then rename it atomically
+     * into place.
+     *
+     * @param to The store to copy into
+     * @param type The type of the object
+     * @param id The id of the object
+     * @param loose The loose file of the object, null if it is packed
+     * @param target The file of the object in TO
+     * @return The number of bytes copied
+     */
+    private long transferTo(ObjectStore to, byte type, String id, File loose, File target)
+            throws IOException {
+        File temp = File.createTempFile("incoming-", ".tmp", to.objectsDir);
+        try {
+            long size;
+            try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                size = transferTo(type, id, loose, out);
+                out.force(true);
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return size;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Return the size of the stored form of an object.
+     * Throws IllegalArgumentException if there is no such object.
+     *
+     * @param type The type of the object
+     * @param id The id of the object
+     * @return The number of bytes
+     */
+    long storedSize(byte type, String id) {
+        File loose = findLoose(type, id);
+        long size = loose != null ? loose.length() : pack.storedSize(type, id);
+        if (size < 0) {
+            throw new IllegalArgumentException("no such object: " + id);
+        }
+        return size;
+    }
+
+    /**
+     * Copy the stored form of an object into a channel, without reading
+     * it onto the heap.
+     * Throws IllegalArgumentException if there is no such object.
+     *
+     * @param type The type of the object
+     * @param id The id of the object
+     * @param out The channel to copy into
+     * @return The number of bytes copied
+     */
+    long transferTo(byte type, String id, WritableByteChannel out) {
+        try {
+            return transferTo(type, id, findLoose(type, id), out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Copy the stored form of the object ID of the given TYPE, whose
+     *  loose file is LOOSE or null if it is packed, into OUT, returning
+     *  the number of bytes copied. */
+    private long transferTo(byte type, String id, File loose, WritableByteChannel out)
+            throws IOException {
+        if (loose != null) {
+            try (FileChannel in = FileChannel.open(loose.toPath(), StandardOpenOption.READ)) {
+                return Utils.transfer(in, 0, in.size(), out);
+            }
+        }
+        long size = pack.transferTo(type, id, out);
+        if (size < 0) {
+            throw new IllegalArgumentException("no such object: " + id);
+        }
+        return size;
+    }
+
+    /**
+     * Write an object read from a channel in its stored form, as sent by
+     * another store's transferTo. The sender is not trusted: the bytes go
+     * into a temporary file and are hashed on the way, and the object is
+     * only renamed into place once it is found to be the object its id
+     * names and everything it refers to is here. A blob or tree must hash
+     * to its id; a commit must be in the current format and its id must
+     * be that of its message, time, parent and tree. So once a commit is
+     * here, its whole history and every file of it is too, provided the
+     * objects are received parents first, as Transfer sends them. An
+     * object already here is dropped. A new commit is also added to the
+     * commit indexes.
+     * Throws IllegalArgumentException if the channel ends early or the
+     * object is rejected.
+     *
+     * @param type The type of the object
+     * @param id The id of the object
+     * @param in The channel to read from, positioned at the stored form
+     * @param length The size of the stored form
+     */
+    void receive(byte type, String id, ReadableByteChannel in, long length) {
+        try {
+            File temp = File.createTempFile("incoming-", ".tmp", objectsDir);
+            ContentDigest digest = new ContentDigest();
+            try {
+                try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                    ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+                    long done = 0;
+                    while (done < length) {
+                        buf.clear().limit((int) Math.min(buf.capacity(), length - done));
+                        if (in.read(buf) < 0) {
+                            throw new IOException("unexpected end of stream");
+                        }
+                        buf.flip();
+                        digest.update(buf.array(), 0, buf.limit());
+                        done += buf.limit();
+                        while (buf.hasRemaining()) {
+                            out.write(buf);
+                        }
+                    }
+                    out.force(true);
+                }
+                if (contains(type, id)) {
+                    return;
+                }
+                verify(type, id, digest.finish(), temp);
+                File target = looseFile(type, id);
+                target.getParentFile().mkdirs();
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                digest.end();
+                temp.delete();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (type == COMMIT) {
+            indexCommit(id, read(COMMIT, id));
+        }
+    }
+
+    /**
+     * Check that a received object is the object its id names and that
+     * everything it refers to is in this store.
+     * Throws IllegalArgumentException if it is not.
+     *
+     * @param type The type of the object
+     * @param id The id the object was sent under
+     * @param hash The hash of the raw contents of the object
+     * @param stored The file holding the stored form of the object
+     */
+    private void verify(byte type, String id, String hash, File stored) {
+        switch (type) {
+            case BLOB:
+                if (!hash.equals(id)) {
+                    throw new IllegalArgumentException("Object " + id + " does not match its id.");
+                }
+                break;
+            case TREE:
+                if (!hash.equals(id)) {
+                    throw new IllegalArgumentException("Object " + id + " does not match its id.");
+                }
+                Tree tree = Tree.decode(decompress(Utils.readContents(stored)));
+                for (String blobId : tree.blobIds()) {
+                    requirePresent(BLOB, blobId, id);
+                }
+                for (String subtreeId : tree.subtreeIds()) {
+                    requirePresent(TREE, subtreeId, id);
+                }
+                break;
+            case COMMIT:
+                Commit commit = Commit.decodeVerified(decompress(Utils.readContents(stored)), this);
+                if (!commit.getId().equals(id)) {
+                    throw new IllegalArgumentException("Object " + id + " does not match its id.");
+                }
+                requirePresent(TREE, commit.getTree(), id);
+                if (commit.getParent() != null) {
+                    requirePresent(COMMIT, commit.getParent(), id);
+                }
+                if (commit.getSecondParent() != null) {
+                    requirePresent(COMMIT, commit.getSecondParent(), id);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown object type.");
+        }
+    }
+
+    /** Throw IllegalArgumentException unless the object ID of the given
+     *  TYPE, which the received object REFERRER refers to, is here. */
+    private void requirePresent(byte type, String id, String referrer) {
+        if (!contains(type, id)) {
+            throw new IllegalArgumentException("Object " + referrer
+                    + " refers to missing object " + id + ".");
+        }
+    }
+
+    /** Hashes the raw contents of an object from its stored form as the
+     *  stored bytes go by, inflating them if they start with the magic
+     *  number, so that a received object is checked without being read
+     *  back. */
+    private static class ContentDigest {
+        /** The digest of the raw contents. */
+        private final MessageDigest md;
+        /** The first bytes, held until it is known whether they are the magic number. */
+        private final byte[] head = new byte[COMPRESSED_MAGIC.length];
+        /** Number of bytes in HEAD. */
+        private int headLength;
+        /** The decompressor, null unless the object is compressed. */
+        private Inflater inflater;
+        /** True once the object is known to be stored uncompressed. */
+        private boolean raw;
+        /** Inflated bytes waiting to be hashed. */
+        private final byte[] buf = new byte[8192];
+
+        ContentDigest() {
+            try {
+                md = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException excp) {
+                throw new IllegalArgumentException("System does not support SHA-1");
+            }
+        }
+
+        /** Hash the LEN stored bytes of BYTES from OFF on. */
+        void update(byte[] bytes, int off, int len) {
+            while (len > 0 && !raw && inflater == null) {
+                head[headLength++] = bytes[off++];
+                len--;
+                if (headLength == head.length) {
+                    if (Arrays.equals(head, COMPRESSED_MAGIC)) {
+                        inflater = new Inflater();
+                    } else {
+                        raw = true;
+                        md.update(head);
+                    }
+                }
+            }
+            if (len == 0) {
+                return;
+            }
+            if (raw) {
+                md.update(bytes, off, len);
+                return;
+            }
+            if (inflater.finished()) {
+                throw new IllegalArgumentException("Corrupt object: data after the end.");
+            }
+            inflater.setInput(bytes, off, len);
+            try {
+                while (!inflater.finished() && !inflater.needsInput()) {
+                    int n = inflater.inflate(buf);
+                    if (n == 0 && inflater.needsDictionary()) {
+                        throw new IllegalArgumentException("Corrupt object.");
+                    }
+                    md.update(buf, 0, n);
+                }
+            } catch (DataFormatException excp) {
+                throw new IllegalArgumentException("Corrupt object.");
+            }
+        }
+
+        /** Return the hash of the raw contents, once every stored byte is hashed. */
+        String finish() {
+            if (inflater == null) {
+                if (!raw) {
+                    md.update(head, 0, headLength);
+                }
+                return Utils.toHex(md.digest());
+            }
+            if (!inflater.finished() || inflater.getRemaining() != 0) {
+                throw new IllegalArgumentException("Corrupt object.");
+            }
+            return Utils.toHex(md.digest());
+        }
+
+        /** Release the decompressor. */
+        void end() {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    /** Add the new commit ID with raw CONTENTS to the commit index, the
+     *  commit graph and the message index. */
+    private void indexCommit(String id, byte[] contents) {
+        Commit commit = Commit.decode(contents, this);
+        CommitIndex.of(gitletDir).add(id);
+        CommitGraph.of(gitletDir).add(id, commit);
+        MessageIndex.of(gitletDir).add(id, commit.getMessage());
+    }
+
+    /**
+     * Read a commit object.
+     *
+     * @param id The id of the commit
+     * @return The commit
+     */
+    Commit readCommit(String id) {
+        return Commit.decode(read(COMMIT, id), this);
+    }
+
+    /**
+     * List the ids of all objects of one type, loose or packed.
+     *
+     * @param type The type of objects to list
+     * @return The ids in lexicographic order
+     */
+    List<String> ids(byte type) {
+        List<String> result = new ArrayList<>();
+        idIterator(type).forEachRemaining(result::add);
+        return result;
+    }
+
+    /**
+     * Iterate over the ids of all objects of one type, loose or packed.
+     * The loose objects are listed one fan-out subdirectory at a time and
+     * merged with the pack as they go, so only one subdirectory is ever
+     * held and sorted.
+     *
+     * @param type The type of objects to list
+     * @return The ids in lexicographic order
+     */
+    Iterator<String> idIterator(byte type) {
+        File dir = looseDir(type);
+        String[] names = dir.list();
+        List<String> shards = new ArrayList<>();
+        List<String> flat = new ArrayList<>();
+        for (String name : names == null ? new String[0] : names) {
+            if (name.length() == FAN_OUT_DIGITS && Utils.join(dir, name).isDirectory()) {
+                shards.add(name);
+            } else if (ObjectId.isValid(name)) {
+                flat.add(name);
+            }
+        }
+        Collections.sort(shards);
+        Collections.sort(flat);
+        Iterator<String> sharded = shards.stream()
+                .flatMap(shard -> shardIds(dir, shard).stream()).iterator();
+        return new MergedIterator(List.of(sharded, flat.iterator(), pack.idIterator(type)));
+    }
+
+    /**
+     * List the ids of the objects of one type that start with a prefix.
+     * A prefix of at least two digits lists only its fan-out subdirectory
+     * and the objects left directly in the type directory by an older
+     * gitlet, and finds packed objects by binary search in the pack index;
+     * a shorter prefix lists every loose object.
+     *
+     * @param type The type of objects to list
+     * @param prefix The start of the ids
+     * @return The matching ids in lexicographic order
+     */
+    List<String> idsWithPrefix(byte type, String prefix) {
+        TreeSet<String> result = new TreeSet<>();
+        if (prefix.length() < FAN_OUT_DIGITS) {
+            result.addAll(looseFiles(type).keySet());
+        } else {
+            File shard = Utils.join(looseDir(type), prefix.substring(0, FAN_OUT_DIGITS));
+            List<String> rest = Utils.plainFilenamesIn(shard);
+            for (String restName : rest == null ? Collections.<String>emptyList() : rest) {
+                result.add(shard.getName() + restName);
+            }
+            List<String> flat = Utils.plainFilenamesIn(looseDir(type));
+            result.addAll(flat == null ? Collections.<String>emptyList() : flat);
+        }
+        result.removeIf(id -> !id.startsWith(prefix) || !ObjectId.isValid(id));
+        result.addAll(pack.idsWithPrefix(type, prefix));
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Fold every loose object into the pack and delete the loose files.
+     * Objects too large for the pack stay loose.
+     *
+     * @return The number of objects packed
+     */
+    int repack() {
+        List<PackFile.Entry> entries = new ArrayList<>();
+        List<File> packedLoose = new ArrayList<>();
+        for (byte type : new byte[] {COMMIT, TREE, BLOB}) {
+            for (Map.Entry<String, File> loose : looseFiles(type).entrySet()) {
+                if (loose.getValue().length() > PackFile.MAX_LENGTH) {
+                    continue;
+                }
+                packedLoose.add(loose.getValue());
+                if (!pack.contains(type, loose.getKey())) {
+                    entries.add(new PackFile.Entry(type, loose.getKey(), loose.getValue()));
+                }
+            }
+        }
+        pack.append(entries);
+        for (File f : packedLoose) {
+            f.delete();
+            f.getParentFile().delete();
+        }
+        return entries.size();
+    }
+
+    /**
+     * Move loose objects stored directly in commits/ or blobs/ into their
+     * fan-out subdirectories.
+     *
+     * @return The number of objects moved
+     */
+    int migrateLoose() {
+        int moved = 0;
+        for (byte type : new byte[] {COMMIT, TREE, BLOB}) {
+            List<String> flat = Utils.plainFilenamesIn(looseDir(type));
+            for (String id : flat == null ? Collections.<String>emptyList() : flat) {
+                if (!ObjectId.isValid(id)) {
+                    continue;
+                }
+                File target = looseFile(type, id);
+                target.getParentFile().mkdirs();
+                try {
+                    Files.move(Utils.join(looseDir(type), id).toPath(), target.toPath(),
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * List the ids of the loose objects in one fan-out subdirectory.
+     *
+     * @param dir The directory of loose objects of one type
+     * @param shard The name of the subdirectory
+     * @return The ids in lexicographic order
+     */
+    private static List<String> shardIds(File dir, String shard) {
+        List<String> ids = new ArrayList<>();
+        List<String> rest = Utils.plainFilenamesIn(Utils.join(dir, shard));
+        for (String restName : rest == null ? Collections.<String>emptyList() : rest) {
+            if (ObjectId.isValid(shard + restName)) {
+                ids.add(shard + restName);
+            }
+        }
+        return ids;
+    }
+
+    /** Merges sorted iterators of ids into one, dropping duplicates. */
+    private static class MergedIterator implements Iterator<String> {
+        /** The next id of each source that has one, smallest first. */
+        private final PriorityQueue<Map.Entry<String, Iterator<String>>> heads =
+                new PriorityQueue<>(Map.Entry.comparingByKey());
+        /** The last id returned. */
+        private String last;
+
+        MergedIterator(List<Iterator<String>> sources) {
+            for (Iterator<String> source : sources) {
+                advance(source);
+            }
+        }
+
+        /** Queue the next id of SOURCE, if any. */
+        private void advance(Iterator<String> source) {
+            if (source.hasNext()) {
+                heads.add(new AbstractMap.SimpleEntry<>(source.next(), source));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!heads.isEmpty() && heads.peek().getKey().equals(last)) {
+                advance(heads.remove().getValue());
+            }
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, Iterator<String>> head = heads.remove();
+            last = head.getKey();
+            advance(head.getValue());
+            return last;
+        }
+    }
+
+    /** Return the Deflate level of new objects. */
+    static int compressionLevel() {
+        int level = Integer.getInteger(COMPRESSION_PROPERTY, DEFAULT_COMPRESSION);
+        return Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, level));
+    }
+
+    /**
+     * Compress the contents of an object for storage.
+     *
+     * @param contents The raw contents
+     * @return The stored form: the magic number and the deflated contents,
+     *         or CONTENTS itself if compression is off and CONTENTS does
+     *         not start with the magic number
+     */
+    static byte[] compress(byte[] contents) {
+        int level = compressionLevel();
+        if (level == 0 && !Arrays.equals(contents, 0, Math.min(contents.length,
+                COMPRESSED_MAGIC.length), COMPRESSED_MAGIC, 0, COMPRESSED_MAGIC.length)) {
+            return contents;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(contents.length / 2 + 64);
+        bytes.writeBytes(COMPRESSED_MAGIC);
+        Deflater deflater = new Deflater(level);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+            out.write(contents);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Recover the raw contents of an object from its stored form.
+     * Contents without the magic number are an uncompressed object and
+     * returned as they are; contents that do not inflate cleanly after it
+     * are corrupt.
+     *
+     * @param stored The stored form
+     * @return The raw contents
+     */
+    static byte[] decompress(byte[] stored) {
+        int start = COMPRESSED_MAGIC.length;
+        if (stored.length < start
+                || !Arrays.equals(stored, 0, start, COMPRESSED_MAGIC, 0, start)) {
+            return stored;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, start, stored.length - start);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 * stored.length);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw Utils.error("Corrupt object.");
+                }
+                bytes.write(buf, 0, n);
+            }
+            if (inflater.getRemaining() != 0) {
+                throw Utils.error("Corrupt object.");
+            }
+            return bytes.toByteArray();
+        } catch (DataFormatException excp) {
+            throw Utils.error("Corrupt object.");
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Return the file a loose object ID of the given TYPE is written to. */
+    private File looseFile(byte type, String id) {
+        return Utils.join(looseDir(type), id.substring(0, FAN_OUT_DIGITS),
+                id.substring(FAN_OUT_DIGITS));
+    }
+
+    /**
+     * Find the loose file of an object, in its fan-out subdirectory or
+     * directly in the loose directory.
+     *
+     * @param type The type of the object
+     * @param id The id of the object
+     * @return The file, null if the object is not loose
+     */
+    private File findLoose(byte type, String id) {
+        if (!ObjectId.isValid(id)) {
+            return null;
+        }
+        File loose = looseFile(type, id);
+        if (loose.isFile()) {
+            return loose;
+        }
+        loose = Utils.join(looseDir(type), id);
+        return loose.isFile() ? loose : null;
+    }
+
+    /**
+     * List the loose objects of one type, in either layout.
+     *
+     * @param type The type of objects to list
+     * @return The file of each loose object, by id in lexicographic order
+     */
+    private TreeMap<String, File> looseFiles(byte type) {
+        TreeMap<String, File> result = new TreeMap<>();
+        File dir = looseDir(type);
+        String[] names = dir.list();
+        if (names == null) {
+            return result;
+        }
+        for (String name : names) {
+            File file = Utils.join(dir, name);
+            if (name.length() == FAN_OUT_DIGITS && file.isDirectory()) {
+                for (String id : shardIds(dir, name)) {
+                    result.put(id, looseFile(type, id));
+                }
+            } else if (ObjectId.isValid(name) && file.isFile()) {
+                result.put(name, file);
+            }
+        }
+        return result;
+    }
+
+    /** Return the directory of loose objects of the given TYPE. */
+    private File looseDir(byte type) {
+        switch (type) {
+            case COMMIT:
+                return commitsDir;
+            case TREE:
+                return treesDir;
+            default:
+                return blobsDir;
+        }
+    }
+}
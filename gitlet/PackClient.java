@@ -0,0 +1,211 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/** A connection to a PackServer, through which push and fetch reach a
+ *  remote given as a gitlet://HOST:PORT URL instead of a directory.
+ *  Each connection serves one request. A failed reply, or a connection
+ *  that breaks, is thrown as a GitletException with the message to print.
+ *
+ *  @author Chen
+ */
+class PackClient implements Closeable {
+
+    /** Prefix of the remotes served by a PackServer. */
+    static final String SCHEME = "gitlet://";
+
+    /** The connection to the server. */
+    private final Socket socket;
+    /** The stream from the server. */
+    private final DataInputStream in;
+    /** The stream to the server. */
+    private final DataOutputStream out;
+    /** The tips of the server's branches, once a push is started. */
+    private Set<String> tips;
+
+    private PackClient(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /** Return true if the remote REMOTE is a URL served by a PackServer. */
+    static boolean isUrl(String remote) {
+        return remote.startsWith(SCHEME);
+    }
+
+    /**
+     * Connect to the server of a remote.
+     *
+     * @param url The remote, as gitlet://HOST:PORT
+     * @return The connection
+     */
+    static PackClient connect(String url) {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException excp) {
+            throw new GitletException("Invalid remote URL.");
+        }
+        if (uri.getHost() == null || uri.getPort() < 0) {
+            throw new GitletException("Invalid remote URL.");
+        }
+        try {
+            return new PackClient(new Socket(uri.getHost(), uri.getPort()));
+        } catch (IOException excp) {
+            throw new GitletException("Remote server not reachable.");
+        }
+    }
+
+    /**
+     * Start fetching a branch: send the request, answer the server's plan
+     * from the local store, and return the head of the branch. The pack,
+     * or the manifest on a dry run, is read next.
+     *
+     * @param branch The branch of the server to fetch
+     * @param localTips The tips of the local branches
+     * @param dryRun Ask for the manifest instead of the pack
+     * @return The id of the head commit of the branch
+     */
+    String startFetch(String branch, Set<String> localTips, boolean dryRun) {
+        try {
+            request("fetch");
+            out.writeUTF(branch);
+            out.writeBoolean(dryRun);
+            PackServer.writeIds(out, localTips);
+            out.flush();
+            readStatus();
+            String head = in.readUTF();
+            Transfer.answerPlan(in, out, ObjectStore.local());
+            return head;
+        } catch (IOException excp) {
+            throw lost();
+        }
+    }
+
+    /** Read the manifest the server sends on a dry run of fetch. */
+    String readManifest() {
+        try {
+            byte[] manifest = new byte[in.readInt()];
+            in.readFully(manifest);
+            return new String(manifest, StandardCharsets.UTF_8);
+        } catch (IOException excp) {
+            throw lost();
+        }
+    }
+
+    /** Write the pack the server sends into the local store, returning
+     *  the number of objects received. Each object is checked as in a
+     *  push; a rejected object is thrown as a GitletException. */
+    int receivePack() {
+        try {
+            return Transfer.receivePack(in, ObjectStore.local());
+        } catch (IOException excp) {
+            throw lost();
+        } catch (IllegalArgumentException excp) {
+            throw new GitletException("The remote sent a bad object: " + excp.getMessage());
+        }
+    }
+
+    /**
+     * Start pushing to a branch: send the request and return the head of
+     * the server's current branch. The tips of the server's branches are
+     * then given by tips.
+     *
+     * @param branch The branch of the server to push to
+     * @return The id of the head commit of the server's current branch
+     */
+    String startPush(String branch) {
+        try {
+            request("push");
+            out.writeUTF(branch);
+            out.flush();
+            readStatus();
+            String head = in.readUTF();
+            tips = PackServer.readIds(in);
+            return head;
+        } catch (IOException excp) {
+            throw lost();
+        }
+    }
+
+    /** Return the tips of the server's branches, as sent by startPush. */
+    Set<String> tips() {
+        return tips;
+    }
+
+    /** Send the plan of TRANSFER to the server and drop the objects it has. */
+    void negotiate(Transfer transfer) {
+        try {
+            transfer.sendPlan(out);
+            transfer.readAnswer(in);
+        } catch (IOException excp) {
+            throw lost();
+        }
+    }
+
+    /**
+     * Send the pack of a negotiated transfer and wait until the server
+     * has moved the branch to HEAD.
+     *
+     * @param transfer The transfer
+     * @param head The new head of the branch
+     */
+    void sendPack(Transfer transfer, String head) {
+        try {
+            out.writeUTF(head);
+            transfer.sendPack(out);
+            readStatus();
+        } catch (IOException excp) {
+            throw lost();
+        }
+    }
+
+    /** Ask the server to stop. */
+    void stop() {
+        try {
+            request("stop");
+            out.flush();
+            readStatus();
+        } catch (IOException excp) {
+            throw lost();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException excp) {
+            // Nothing is left to send.
+        }
+    }
+
+    /** Send the head of a request named NAME. */
+    private void request(String name) throws IOException {
+        out.writeInt(PackServer.VERSION);
+        out.writeUTF(name);
+    }
+
+    /** Read the status of a reply, throwing the message of a failed one. */
+    private void readStatus() throws IOException {
+        if (in.readByte() != PackServer.OK) {
+            throw new GitletException(in.readUTF());
+        }
+    }
+
+    /** Return the exception for a connection that broke. */
+    private static GitletException lost() {
+        return new GitletException("Lost connection to the remote server.");
+    }
+}
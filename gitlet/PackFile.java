@@ -0,0 +1,381 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** A pack of gitlet objects: one append-only data file holding the raw
+ *  contents of many objects, plus a sorted index file mapping each object
+ *  id to its offset in the data file.
+ *
+ *  Data file: "GPAK", version, then records of [type][length][contents].
+ *  Index file: "GIDX", version, count, then count fixed-width records of
+ *  [20-byte raw id][type][offset], sorted by id and then by type.
+ *
+ *  @author Chen
+ */
+class PackFile {
+
+    /** Magic number at the head of the data file. */
+    private static final int DATA_MAGIC = 0x4750414b;      // "GPAK"
+    /** Magic number at the head of the index file. */
+    private static final int INDEX_MAGIC = 0x47494458;     // "GIDX"
+    /** Version of the pack format. */
+    private static final int VERSION = 1;
+    /** Length of the data file header. */
+    private static final int DATA_HEADER_LENGTH = 8;
+    /** Length of the index file header. */
+    private static final int INDEX_HEADER_LENGTH = 12;
+    /** Length of the raw form of an object id. */
+    private static final int RAW_ID_LENGTH = ObjectId.RAW_LENGTH;
+    /** Length of one index record. */
+    private static final int RECORD_LENGTH = RAW_ID_LENGTH + 1 + 8;
+    /** Largest stored object a pack can hold, as records store an int
+     *  length and objects are read back into one array. */
+    static final long MAX_LENGTH = Integer.MAX_VALUE;
+
+    /** The append-only data file. */
+    private final File dataFile;
+    /** The sorted index file. */
+    private final File indexFile;
+    /** The contents of the index file, loaded on first use. */
+    private ByteBuffer index;
+
+    /** A pack stored in DIR. */
+    PackFile(File dir) {
+        this.dataFile = Utils.join(dir, "pack.dat");
+        this.indexFile = Utils.join(dir, "pack.idx");
+    }
+
+    /** One object to be appended to the pack. */
+    static class Entry {
+        /** The type of the object. */
+        final byte type;
+        /** The hexadecimal id of the object. */
+        final String id;
+        /** The loose file holding the raw contents of the object. */
+        final File source;
+
+        Entry(byte type, String id, File source) {
+            this.type = type;
+            this.id = id;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Check whether the pack holds an object.
+     *
+     * @param type The type of the object
+     * @param id The id of the object
+     * @return True if the object is in the pack
+     */
+    boolean contains(byte type, String id) {
+        return find(type, id) >= 0;
+    }
+
+    /**
+     * Read the raw contents of an object from the pack.
+     *
+     * @param type The type of the object
+     * @param id The id of the object
+     * @return The contents, null if the object is not in the pack
+     */
+    byte[] read(byte type, String id) {
+        int record = find(type, id);
+        if (record < 0) {
+            return null;
+        }
+        long offset = loadIndex().getLong(recordPosition(record) + RAW_ID_LENGTH + 1);
+        try (RandomAccessFile data = new RandomAccessFile(dataFile, "r")) {
+            data.seek(offset);
+            data.readByte();
+            byte[] contents = new byte[data.readInt()];
+            data.readFully(contents);
+            return contents;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Return the size of the stored contents of an object in the pack.
+     *
+     * @param type The type of the object
+     * @param id The id of the object
+     * @return The number of bytes, -1 if the object is not in the pack
+     */
+    long storedSize(byte type, String id) {
+        int record = find(type, id);
+        if (record < 0) {
+            return -1;
+        }
+        long offset = loadIndex().getLong(recordPosition(record) + RAW_ID_LENGTH + 1);
+        try (FileChannel data = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(1 + 4);
+            if (data.read(header, offset) < header.capacity()) {
+                throw Utils.error("Corrupt pack: %s", dataFile.getPath());
+            }
+            return header.getInt(1);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Copy the stored contents of an object from the pack into a channel,
+     * by transferTo from the data file, without reading it onto the heap.
+     *
+     * @param type The type of the object
+     * @param id The id of the object
+     * @param out The channel to copy into
+     * @return The number of bytes copied, -1 if the object is not in the pack
+     */
+    long transferTo(byte type, String id, WritableByteChannel out) {
+        int record = find(type, id);
+        if (record < 0) {
+            return -1;
+        }
+        long offset = loadIndex().getLong(recordPosition(record) + RAW_ID_LENGTH + 1);
+        try (FileChannel data = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(1 + 4);
+            if (data.read(header, offset) < header.capacity()) {
+                throw Utils.error("Corrupt pack: %s", dataFile.getPath());
+            }
+            long length = header.getInt(1);
+            return Utils.transfer(data, offset + header.capacity(), length, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * List the ids of all objects of the given type in the pack.
+     *
+     * @param type The type of objects to list
+     * @return The ids in lexicographic order
+     */
+    List<String> ids(byte type) {
+        List<String> result = new ArrayList<>();
+        idIterator(type).forEachRemaining(result::add);
+        return result;
+    }
+
+    /**
+     * List the ids of the objects of one type in the pack that start with
+     * a prefix. The first of them is found by binary search.
+     *
+     * @param type The type of objects to list
+     * @param prefix The start of the ids
+     * @return The ids in lexicographic order
+     */
+    List<String> idsWithPrefix(byte type, String prefix) {
+        List<String> result = new ArrayList<>();
+        String lowest = (prefix + "0".repeat(ObjectId.HEX_LENGTH))
+                .substring(0, ObjectId.HEX_LENGTH);
+        if (prefix.length() > ObjectId.HEX_LENGTH || !ObjectId.isValid(lowest)) {
+            return result;
+        }
+        ByteBuffer idx = loadIndex();
+        ObjectId key = ObjectId.fromHex(lowest);
+        int total = count();
+        int lo = 0, hi = total;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (key.compareTo(idx, recordPosition(mid)) > 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < total; i++) {
+            String id = ObjectId.toHex(idx, recordPosition(i));
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            if (idx.get(recordPosition(i) + RAW_ID_LENGTH) == type) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Iterate over the ids of the objects of the given type in the pack,
+     * converting each only when it is reached.
+     *
+     * @param type The type of objects to list
+     * @return The ids in lexicographic order
+     */
+    Iterator<String> idIterator(byte type) {
+        ByteBuffer idx = loadIndex();
+        int total = count();
+        return new Iterator<>() {
+            /** The next record to look at. */
+            private int next = advance(0);
+
+            /** Return the first record from I on holding an object of TYPE. */
+            private int advance(int i) {
+                while (i < total && idx.get(recordPosition(i) + RAW_ID_LENGTH) != type) {
+                    i++;
+                }
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < total;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String id = ObjectId.toHex(idx, recordPosition(next));
+                next = advance(next + 1);
+                return id;
+            }
+        };
+    }
+
+    /**
+     * Append objects to the data file, then rewrite the index to cover
+     * both the old and the new objects. The index is replaced atomically
+     * only after the data is on disk, so a crash leaves at worst some
+     * unreferenced bytes at the end of the data file.
+     *
+     * @param entries The objects to append, none already in the pack and
+     *                none longer than MAX_LENGTH
+     */
+    void append(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        for (Entry entry : entries) {
+            if (entry.source.length() > MAX_LENGTH) {
+                throw new IllegalArgumentException("Object too large to pack: " + entry.id);
+            }
+        }
+        ByteBuffer oldIndex = loadIndex();
+        int oldCount = count();
+        byte[] records = new byte[(oldCount + entries.size()) * RECORD_LENGTH];
+        oldIndex.position(INDEX_HEADER_LENGTH);
+        oldIndex.get(records, 0, oldCount * RECORD_LENGTH);
+        ByteBuffer newRecords = ByteBuffer.wrap(records);
+        newRecords.position(oldCount * RECORD_LENGTH);
+
+        try {
+            dataFile.getParentFile().mkdirs();
+            boolean fresh = !dataFile.exists() || dataFile.length() == 0;
+            long offset = fresh ? DATA_HEADER_LENGTH : dataFile.length();
+            try (FileOutputStream fileOut = new FileOutputStream(dataFile, true);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+                if (fresh) {
+                    out.writeInt(DATA_MAGIC);
+                    out.writeInt(VERSION);
+                }
+                for (Entry entry : entries) {
+                    ObjectId.fromHex(entry.id).writeTo(newRecords);
+                    newRecords.put(entry.type);
+                    newRecords.putLong(offset);
+                    out.writeByte(entry.type);
+                    long length = entry.source.length();
+                    out.writeInt((int) length);
+                    Files.copy(entry.source.toPath(), out);
+                    offset += 1 + 4 + length;
+                }
+                out.flush();
+                fileOut.getChannel().force(true);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        byte[][] sorted = new byte[oldCount + entries.size()][];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = Arrays.copyOfRange(records, i * RECORD_LENGTH, (i + 1) * RECORD_LENGTH);
+        }
+        Arrays.sort(sorted, (a, b) -> Arrays.compareUnsigned(a, 0, RAW_ID_LENGTH + 1,
+                b, 0, RAW_ID_LENGTH + 1));
+        ByteBuffer newIndex = ByteBuffer.allocate(INDEX_HEADER_LENGTH + records.length);
+        newIndex.putInt(INDEX_MAGIC).putInt(VERSION).putInt(sorted.length);
+        for (byte[] record : sorted) {
+            newIndex.put(record);
+        }
+        Utils.writeAtomically(indexFile, newIndex.array());
+        index = null;
+    }
+
+    /**
+     * Find the record of an object in the index by binary search.
+     *
+     * @param type The type of the object
+     * @param id The id of the object
+     * @return The record number, or -1 if absent
+     */
+    private int find(byte type, String id) {
+        if (!ObjectId.isValid(id)) {
+            return -1;
+        }
+        ByteBuffer idx = loadIndex();
+        ObjectId key = ObjectId.fromHex(id);
+        int lo = 0, hi = count() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int pos = recordPosition(mid);
+            int cmp = -key.compareTo(idx, pos);
+            if (cmp == 0) {
+                cmp = Byte.compare(idx.get(pos + RAW_ID_LENGTH), type);
+            }
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Return the number of records in the index. */
+    private int count() {
+        return loadIndex().getInt(8);
+    }
+
+    /** Return the position of record number I in the index. */
+    private static int recordPosition(int i) {
+        return INDEX_HEADER_LENGTH + i * RECORD_LENGTH;
+    }
+
+    /** Load the index file, or an empty index if there is no pack yet.
+     *  Objects may be looked up from several threads, as by add. */
+    private synchronized ByteBuffer loadIndex() {
+        if (index == null) {
+            if (indexFile.isFile()) {
+                index = ByteBuffer.wrap(Utils.readContents(indexFile));
+                if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION) {
+                    throw Utils.error("Corrupt pack index: %s", indexFile.getPath());
+                }
+            } else {
+                index = ByteBuffer.allocate(INDEX_HEADER_LENGTH);
+                index.putInt(INDEX_MAGIC).putInt(VERSION).putInt(0);
+            }
+        }
+        return index;
+    }
+}
@@ -0,0 +1,352 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/** Serves the repository in the working directory over TCP, so that push
+ *  and fetch on other machines can reach it as gitlet://HOST:PORT through
+ *  PackClient. There is no authentication: anyone who can reach the port
+ *  can fetch and push, so the server listens on the loopback address
+ *  unless it is given another one.
+ *
+ *  A request starts with the protocol version and the name of the
+ *  request. Every reply starts with a status byte, followed on failure
+ *  by the message to print. The requests are
+ *
+ *  fetch BRANCH DRYRUN TIPS: the server replies with the head of BRANCH,
+ *  plans the commits the client lacks with Transfer, sends the plan and
+ *  reads which objects the client has, then sends the pack, or with
+ *  DRYRUN the manifest of the plan.
+ *
+ *  push BRANCH: the server replies with the head of its current branch
+ *  and the tips of its branches, answers the client's plan, then reads
+ *  the new head of BRANCH and the pack, and moves BRANCH once every
+ *  object is on disk, if the new head is a descendant of the old one.
+ *  Each object is checked against its id as it arrives, and taken only
+ *  once everything it refers to is here; see ObjectStore.receive. A
+ *  client that drops the connection first changes nothing.
+ *
+ *  stop: the server stops, if the request comes from this machine.
+ *
+ *  Requests are served one at a time, and a client that sends nothing
+ *  for CLIENT_TIMEOUT is dropped. The address at which the server can be
+ *  reached from this machine is written to .gitlet/serve.port as
+ *  HOST:PORT while the server runs, and the server stops by itself when
+ *  the repository is deleted.
+ *
+ *  @author Chen
+ */
+class PackServer {
+
+    /** Version of the protocol, sent at the head of each request. */
+    static final int VERSION = 1;
+    /** Status of a reply that succeeded. */
+    static final byte OK = 0;
+    /** Status of a reply that failed, followed by the message. */
+    static final byte ERROR = 1;
+    /** Name of the file in the .gitlet directory holding the port. */
+    static final String PORT_NAME = "serve.port";
+    /** Milliseconds between two checks that the repository still exists. */
+    private static final int POLL_INTERVAL = 1000;
+    /** Milliseconds the server waits for a client to send anything. */
+    private static final int CLIENT_TIMEOUT = 30_000;
+
+    /** True until a client asks the server to stop. */
+    private static boolean running;
+
+    /** Return the port file of the repository in DIR. */
+    static File portFile(File dir) {
+        return join(dir, ".gitlet", PORT_NAME);
+    }
+
+    /**
+     * Serve the repository until a client sends stop or the repository
+     * is deleted.
+     *
+     * @param address The address to listen on, with port 0 for any free port
+     */
+    static void serve(InetSocketAddress address) {
+        checkNotRunning();
+        File portFile = portFile(Repository.CWD);
+        try (ServerSocket server = new ServerSocket()) {
+            server.bind(address);
+            server.setSoTimeout(POLL_INTERVAL);
+            InetAddress local = address.getAddress().isAnyLocalAddress()
+                    ? InetAddress.getLoopbackAddress() : address.getAddress();
+            writeContents(portFile, format(new InetSocketAddress(local, server.getLocalPort())));
+            portFile.deleteOnExit();
+            System.out.println("Serving on port " + server.getLocalPort() + ".");
+            running = true;
+            while (running && Repository.GITLET_DIR.isDirectory()) {
+                try (Socket socket = server.accept()) {
+                    socket.setSoTimeout(CLIENT_TIMEOUT);
+                    handle(socket);
+                } catch (SocketTimeoutException excp) {
+                    // Check that the repository is still there.
+                } catch (IOException excp) {
+                    // The client went away; serve the next one.
+                }
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot listen on port " + address.getPort() + ".");
+        } finally {
+            portFile.delete();
+        }
+    }
+
+    /**
+     * Start a server in a new process and return once it listens.
+     *
+     * @param address The address to listen on, with port 0 for any free port
+     */
+    static void detach(InetSocketAddress address) {
+        checkNotRunning();
+        File portFile = portFile(Repository.CWD);
+        if (!startDetached(() -> portFile.isFile() && !readContentsAsString(portFile).isEmpty(),
+                "serve", format(address))) {
+            throw new GitletException("Cannot listen on port " + address.getPort() + ".");
+        }
+        System.out.println("Serving on port " + readAddress(portFile).getPort() + ".");
+    }
+
+    /**
+     * Ask the server of the current repository to stop.
+     */
+    static void stop() {
+        File portFile = portFile(Repository.CWD);
+        if (!portFile.isFile()) {
+            throw new GitletException("No server is running.");
+        }
+        String url = PackClient.SCHEME + readContentsAsString(portFile);
+        try (PackClient client = PackClient.connect(url)) {
+            client.stop();
+        } catch (GitletException excp) {
+            // Left behind by a server that did not stop cleanly.
+            portFile.delete();
+            throw new GitletException("No server is running.");
+        }
+    }
+
+    /** Refuse to start a second server on the current repository, and
+     *  delete the port file left behind by one that did not stop cleanly. */
+    private static void checkNotRunning() {
+        File portFile = portFile(Repository.CWD);
+        if (!portFile.isFile()) {
+            return;
+        }
+        if (isListening(portFile)) {
+            throw new GitletException("A server is already running.");
+        }
+        portFile.delete();
+    }
+
+    /** Return true if a server listens at the address in PORTFILE. */
+    private static boolean isListening(File portFile) {
+        try {
+            InetSocketAddress address = readAddress(portFile);
+            new Socket(address.getHostString(), address.getPort()).close();
+            return true;
+        } catch (IOException | IllegalArgumentException excp) {
+            return false;
+        }
+    }
+
+    /** Return ADDRESS as HOST:PORT, the form of the serve operand and of
+     *  the port file. */
+    private static String format(InetSocketAddress address) {
+        String host = address.getAddress().getHostAddress();
+        if (address.getAddress() instanceof Inet6Address) {
+            host = "[" + host + "]";
+        }
+        return host + ":" + address.getPort();
+    }
+
+    /** Return the address written in PORTFILE by a running server. */
+    private static InetSocketAddress readAddress(File portFile) {
+        try {
+            URI uri = new URI(PackClient.SCHEME + readContentsAsString(portFile).strip());
+            return new InetSocketAddress(uri.getHost(), uri.getPort());
+        } catch (URISyntaxException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return true if ADDRESS belongs to this machine. */
+    private static boolean isLocal(InetAddress address) throws IOException {
+        return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+    }
+
+    /**
+     * Serve one request.
+     *
+     * @param socket The connection to the client
+     * @throws IOException If the connection fails
+     */
+    private static void handle(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+        if (in.readInt() != VERSION) {
+            fail(out, "Unsupported protocol version.");
+            return;
+        }
+        String request = in.readUTF();
+        Daemon.resetCaches();
+        try {
+            switch (request) {
+                case "fetch":
+                    uploadPack(in, out);
+                    break;
+                case "push":
+                    receivePack(in, out);
+                    break;
+                case "stop":
+                    if (!isLocal(socket.getInetAddress())) {
+                        fail(out, "Only a local client may stop the server.");
+                        break;
+                    }
+                    running = false;
+                    out.writeByte(OK);
+                    out.flush();
+                    break;
+                default:
+                    fail(out, "Unknown request: " + request);
+                    break;
+            }
+        } catch (RuntimeException excp) {
+            // A bad request fails alone; the server goes on.
+            fail(out, excp.getMessage() != null ? excp.getMessage() : excp.toString());
+        }
+    }
+
+    /**
+     * Send the client the commits of a branch it lacks, for fetch.
+     *
+     * @param in The stream from the client
+     * @param out The stream to the client
+     * @throws IOException If the connection fails
+     */
+    private static void uploadPack(DataInputStream in, DataOutputStream out)
+            throws IOException {
+        String branch = in.readUTF();
+        boolean dryRun = in.readBoolean();
+        Set<String> tips = readIds(in);
+        File branchFile = branchFile(branch);
+        if (branchFile == null || !branchFile.isFile()) {
+            fail(out, "That remote does not have that branch.");
+            return;
+        }
+        String head = readContentsAsString(branchFile);
+        // Planned before the reply, so that a plan that is refused fails
+        // the request.
+        Set<String> ids = Repository.findCommitsNeedCopying(tips, head, Repository.GITLET_DIR);
+        Transfer transfer = Transfer.plan(Repository.GITLET_DIR, ids, tips);
+        out.writeByte(OK);
+        out.writeUTF(head);
+        transfer.sendPlan(out);
+        transfer.readAnswer(in);
+        if (dryRun) {
+            byte[] manifest = transfer.manifest().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(manifest.length);
+            out.write(manifest);
+            out.flush();
+        } else {
+            transfer.sendPack(out);
+        }
+    }
+
+    /**
+     * Take the commits the client pushes to a branch.
+     *
+     * @param in The stream from the client
+     * @param out The stream to the client
+     * @throws IOException If the connection fails
+     */
+    private static void receivePack(DataInputStream in, DataOutputStream out)
+            throws IOException {
+        File branchFile = branchFile(in.readUTF());
+        if (branchFile == null) {
+            fail(out, "Invalid branch name.");
+            return;
+        }
+        String headBranch = readContentsAsString(join(Repository.GITLET_DIR, "HEAD"));
+        out.writeByte(OK);
+        out.writeUTF(readContentsAsString(join(Repository.HEADS_DIR, headBranch)));
+        writeIds(out, Repository.findBranchTips(Repository.GITLET_DIR));
+        out.flush();
+        ObjectStore store = ObjectStore.local();
+        Transfer.answerPlan(in, out, store);
+        String newHead = in.readUTF();
+        Transfer.receivePack(in, store);
+        // Each object was only taken once everything it refers to was
+        // here, so the history and files of a present commit are complete.
+        if (!store.contains(ObjectStore.COMMIT, newHead)) {
+            fail(out, "The pushed commit is missing.");
+            return;
+        }
+        String oldHead = branchFile.isFile() ? readContentsAsString(branchFile) : "";
+        if (!oldHead.isEmpty()
+                && !CommitGraph.of(Repository.GITLET_DIR).isAncestor(oldHead, newHead)) {
+            fail(out, "Please pull down remote changes before pushing.");
+            return;
+        }
+        writeContents(branchFile, newHead);
+        out.writeByte(OK);
+        out.flush();
+    }
+
+    /** Return the file of the local branch NAME, or null if NAME could
+     *  name a file outside the branch directory. */
+    private static File branchFile(String name) {
+        if (name.isEmpty() || name.equals(".") || name.equals("..")
+                || name.contains("/") || name.contains(File.separator)) {
+            return null;
+        }
+        return join(Repository.HEADS_DIR, name);
+    }
+
+    /** Send a failed status with MESSAGE on OUT. */
+    private static void fail(DataOutputStream out, String message) throws IOException {
+        out.writeByte(ERROR);
+        out.writeUTF(String.valueOf(message));
+        out.flush();
+    }
+
+    /** Write the number of IDS, then each of them, on OUT. */
+    static void writeIds(DataOutputStream out, Collection<String> ids) throws IOException {
+        out.writeInt(ids.size());
+        for (String id : ids) {
+            out.writeUTF(id);
+        }
+    }
+
+    /** Read ids written by writeIds from IN. */
+    static Set<String> readIds(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Set<String> ids = new LinkedHashSet<>();
+        for (int i = 0; i < size; i++) {
+            ids.add(in.readUTF());
+        }
+        return ids;
+    }
+}
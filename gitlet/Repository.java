@@ -2,6 +2,9 @@ package gitlet;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 
@@ -24,8 +27,10 @@ public class Repository {
     public static final File REFS_DIR = join(GITLET_DIR, "refs");
     public static final File COMMITS_DIR = join(OBJECTS_DIR, "commits");
     public static final File BLOBS_DIR = join(OBJECTS_DIR, "blobs");
+    public static final File TREES_DIR = join(OBJECTS_DIR, "trees");
     public static final File HEADS_DIR = join(REFS_DIR, "heads");
     public static final File REFS_REMOTES_DIR = join(REFS_DIR, "remotes");
+    /** Staging directories of older repositories, moved into INDEX_FILE on first use. */
     public static final File ADD_DIR = join(STAGING_DIR, "add");
     public static final File REMOVE_DIR = join(STAGING_DIR, "remove");
     public static final File REMOTE_DIR = join(GITLET_DIR, "remote");
@@ -33,6 +38,18 @@ public class Repository {
     /** Files. */
     public static final File MASTER_FILE =  join(HEADS_DIR, "master");
     public static final File HEAD_FILE = join(GITLET_DIR, "HEAD");
+    public static final File INDEX_FILE = join(STAGING_DIR, "index");
+
+    /** The head commit, kept between commands run in one process until
+     *  HEAD or the branch it names is written. */
+    private static Commit headCommit;
+
+    /** Number of working files written by checkout and reset in this process. */
+    private static long writtenCount;
+    /** Number of working files checkout and reset found already up to date. */
+    private static long upToDateCount;
+    /** Number of working files deleted by checkout and reset in this process. */
+    private static long deletedCount;
 
 
     /**
@@ -52,14 +69,14 @@ public class Repository {
         REFS_DIR.mkdir();
         COMMITS_DIR.mkdir();
         BLOBS_DIR.mkdir();
+        TREES_DIR.mkdir();
         HEADS_DIR.mkdir();
         REFS_REMOTES_DIR.mkdir();
-        ADD_DIR.mkdir();
-        REMOVE_DIR.mkdir();
         REMOTE_DIR.mkdir();
 
-        // Create initial commit, and serialize it.
-        Commit initialCommit = new Commit("initial commit");
+        // Create initial commit with the empty tree, and serialize it.
+        String emptyTree = Tree.write(ObjectStore.local(), Collections.emptyMap());
+        Commit initialCommit = new Commit("initial commit", emptyTree);
         initialCommit.save();
 
         // Write initial commit id into master pointer.
@@ -81,72 +98,71 @@ public class Repository {
     }
 
     /**
-     * Add ONE file into the staging area.
-     * Specifically form the blob file in blob folder, 
-     * check if it already exists in the staging area,
-     * and delete it if it's in remove area.
+     * Add files into the staging area. A directory stands for every file
+     * under it, and "." for every file in the working directory and its
+     * subdirectories. A file identical to that tracked by the head
+     * commit is not staged, and no file is staged for removal any more.
+     * Each name is first made relative to the working directory.
+     * The head commit and the staging index are read once, new blobs are
+     * written in parallel, and the staging index is written once.
      *
-     * @param fileName The file to add
+     * @param fileNames The files to add
      */
-    public static void add(String fileName) {
-        final File addFile = join(CWD, fileName);
-
-        // Check if the file exists.
-        if (!addFile.exists()) {
-            quit("File does not exist.");
-        }
-
-        // Generate the SHA-1 hash.
-        String blobId = generateHash(addFile);
-
-        // Form the blob file and fill in the content
-        final File blobFile = join(BLOBS_DIR, blobId);
-        if (!blobFile.exists()) {
-            try {
-                blobFile.createNewFile();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    public static void add(List<String> fileNames) {
+        // Check that every file exists before staging any of them.
+        TreeSet<String> names = new TreeSet<>();
+        for (String fileName : fileNames) {
+            String name = normalizePath(fileName);
+            if (name.isEmpty()) {
+                names.addAll(workingFiles(""));
+            } else if (join(CWD, name).isDirectory()) {
+                names.addAll(workingFiles(name));
+            } else if (join(CWD, name).isFile()) {
+                names.add(name);
+            } else {
+                quit("File does not exist.");
+            }
+        }
+
+        // Use the cached SHA-1 hash of each file that is unchanged since it
+        // was last hashed and whose blob exists; stream the others into new
+        // blobs, hashing them on the way.
+        StagingIndex index = StagingIndex.get();
+        ObjectStore store = ObjectStore.local();
+        Map<String, String> blobIds = new HashMap<>();
+        Map<String, StagingIndex.Stat> stats = new HashMap<>();
+        List<String> toWrite = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        for (String name : names) {
+            File file = join(CWD, name);
+            StagingIndex.Stat stat = StagingIndex.Stat.of(file);
+            stats.put(name, stat);
+            String blobId = index.cachedHash(name, stat);
+            if (blobId != null && store.contains(ObjectStore.BLOB, blobId)) {
+                blobIds.put(name, blobId);
+            } else {
+                toWrite.add(name);
+                files.add(file);
             }
-            writeContents(blobFile, readContentsAsString(addFile));
         }
-
-        // Check if current head commit is in track of this file.
-        Commit headCommit = getHeadCommit();
-        if (headCommit.getTrackedFiles().containsKey(fileName)) {
-            // The hash of the existing old file.
-            String headBlobId = headCommit.getTrackedFiles().get(fileName); 
-
-            // If the added file is identical to that tracked by head commit, 
-            // do not add it into stage area.
-            if (headBlobId.equals(blobId)) {
-                File existingIdenticalFileInAdd = join(ADD_DIR, fileName);
-                if (existingIdenticalFileInAdd.exists()) {
-                    restrictedDelete(existingIdenticalFileInAdd);
-                }
-            } else {  // File content is not identical, add it into stage area.
-                File stageFile = join(ADD_DIR, fileName);
-                try {
-                    stageFile.createNewFile();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-                writeContents(stageFile, blobId);
-            }
-        } else {  // No such file in head commit, add into stage area.
-            File stageFile = join(ADD_DIR, fileName);
-            try {
-                stageFile.createNewFile();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-            writeContents(stageFile, blobId);
+        List<String> written = HashService.store(store, ObjectStore.BLOB, files);
+        for (int i = 0; i < toWrite.size(); i++) {
+            String name = toWrite.get(i);
+            index.hashed(name, written.get(i), stats.get(name));
+            blobIds.put(name, written.get(i));
         }
 
-        // Check if it is in remove area. If so, delete it.
-        File removeFileWithId = join(REMOVE_DIR, fileName);
-        if (removeFileWithId.exists()) {
-            removeFileWithId.delete();
+        // Stage the files that differ from the head commit.
+        Map<String, String> headTrackedFiles = getHeadCommit().getTrackedFiles();
+        for (String name : names) {
+            String blobId = blobIds.get(name);
+            if (blobId.equals(headTrackedFiles.get(name))) {
+                index.track(name, blobId, stats.get(name));
+            } else {
+                index.stage(name, blobId, stats.get(name));
+            }
         }
+        index.save();
     }
 
     /**
@@ -175,36 +191,28 @@ public class Repository {
             branchRef = join(HEADS_DIR, currentBranch);
             parent = readContentsAsString(branchRef);
         }
-        Map<String, String> newTrackedFiles = new HashMap<>(getHeadCommit().getTrackedFiles());
-        File[] addedFiles = ADD_DIR.listFiles(), removedFiles = REMOVE_DIR.listFiles();
-        // Add files to trackFiles map.
-        if ((addedFiles == null || addedFiles.length == 0)
-                && (removedFiles == null || removedFiles.length == 0)) {
+        StagingIndex index = StagingIndex.get();
+        if (!index.hasStagedChanges()) {
             quit("No changes added to the commit.");
         }
-        if (addedFiles != null) {
-            for (File f : addedFiles) {
-                if (f.isFile()) {
-                    String name = f.getName();
-                    String blobId = readContentsAsString(f);
-                    newTrackedFiles.put(name, blobId);
-                }
-            }
+        // Collect the staged changes: added files with their blobs,
+        // removed files with none.
+        Map<String, String> changes = new HashMap<>();
+        for (String name : index.stagedFiles()) {
+            changes.put(name, index.stagedBlob(name));
         }
-        // Remove files in trackFiles map.
-        if (removedFiles != null) {
-            for (File f : removedFiles) {
-                if (f.isFile()) {
-                    newTrackedFiles.remove(f.getName());
-                }
-            }
+        for (String name : index.removedFiles()) {
+            changes.put(name, null);
         }
-        ///  Create the new commit
-        Commit thisCommit = new Commit(message, parent, secondParent, newTrackedFiles);
+        ///  Create the new commit, rewriting only the trees of the
+        ///  directories that changed.
+        String tree = Tree.update(ObjectStore.local(), getHeadCommit().getTree(), changes);
+        Commit thisCommit = new Commit(message, parent, secondParent, tree);
 
         // Write this commit into persistence system.
         thisCommit.save();
         writeContents(branchRef, thisCommit.getId());
+        forgetState();
 
         clearStaging();
     }
@@ -217,40 +225,25 @@ public class Repository {
      * @param fileName The file to remove
      */
     public static void rm(String fileName) {
+        fileName = normalizePath(fileName);
+
         // Situation 1
-        File[] addedFiles = ADD_DIR.listFiles();
-        boolean addContainsFile = false;
-        if (addedFiles != null) {
-            for (File f : addedFiles) {
-                if (f.getName().equals(fileName)) {
-                    if (!f.delete()) {
-                        throw new RuntimeException("Failed to delete staging file: "
-                                + f.getPath());
-                    }
-                    addContainsFile = true;
-                    break;
-                }
-            }
+        StagingIndex index = StagingIndex.get();
+        boolean addContainsFile = index.isStaged(fileName);
+        if (addContainsFile) {
+            index.unstage(fileName);
         }
 
         // Situation 2
         Commit headCommit = getHeadCommit();
         boolean headContainsFile = headCommit.getTrackedFiles().containsKey(fileName);
         if (headContainsFile) {
-            File removeFile = join(REMOVE_DIR, fileName);
-            try {
-                removeFile.createNewFile();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-            writeContents(removeFile, headCommit.getTrackedFiles().get(fileName));
+            index.stageRemoval(fileName, headCommit.getTrackedFiles().get(fileName));
 
             // Delete it if exists in working directory
-            File deleteFileInWorkingDir = join(CWD, fileName);
-            if (deleteFileInWorkingDir.exists()) {
-                deleteFileInWorkingDir.delete();
-            }
+            deleteWorkingFile(fileName);
         }
+        index.save();
 
         // Failure cases
         if ((!addContainsFile) && (!headContainsFile)) {
@@ -261,27 +254,37 @@ public class Repository {
     /**
      * Print out the commit information from the HEAD commit to init commit.
      * If one commit has two parent, print out the info, and go along the first parent.
+     * The walk stops as soon as the writer has printed enough, or has reached
+     * commits older than its time range.
+     *
+     * @param out The writer printing the commits
      */
-    public static void log() {
-        Commit currentCommit = getHeadCommit();
-        while (true) {
-            printLog(currentCommit);
-            if (currentCommit.getParent() == null) {
-                break;
+    public static void log(LogWriter out) {
+        try (out) {
+            Commit currentCommit = getHeadCommit();
+            while (!out.isDone() && !out.isBeforeRange(currentCommit)) {
+                out.write(currentCommit);
+                if (currentCommit.getParent() == null) {
+                    break;
+                }
+                currentCommit = getCommit(currentCommit.getParent());
             }
-            currentCommit = getCommit(currentCommit.getParent());
         }
     }
 
     /**
      * Print out all the commits in repository, regardless of branches they're in.
+     * Commit ids are streamed from the object store, and reading stops as
+     * soon as the writer has printed enough.
+     *
+     * @param out The writer printing the commits
      */
-    public static void globalLog() {
-        List<String> commitIds = plainFilenamesIn(COMMITS_DIR);
-        assert commitIds != null;
-        for (String commitId : commitIds) {
-            Commit currentCommit = getCommit(commitId);
-            printLog(currentCommit);
+    public static void globalLog(LogWriter out) {
+        try (out) {
+            Iterator<String> commitIds = ObjectStore.local().idIterator(ObjectStore.COMMIT);
+            while (!out.isDone() && commitIds.hasNext()) {
+                out.write(getCommit(commitIds.next()));
+            }
         }
     }
 
@@ -291,19 +294,29 @@ public class Repository {
      * @param message The message to find
      */
     public static void find(String message) {
-        List<String> commitIds = plainFilenamesIn(COMMITS_DIR);
-        if (commitIds == null) {
-            quit("Found no commit with that message.");
-        }
-        boolean foundCommit = false;
+        printFoundCommits(MessageIndex.of(GITLET_DIR).find(message));
+    }
+
+    /**
+     * Print out the ids of all commits whose messages contain every word
+     * of the query, ignoring case, one per line.
+     *
+     * @param words The words to find
+     */
+    public static void findWords(String words) {
+        printFoundCommits(MessageIndex.of(GITLET_DIR).findWords(words));
+    }
+
+    /**
+     * Print out the ids found by find.
+     *
+     * @param commitIds The ids of the commits found
+     */
+    private static void printFoundCommits(List<String> commitIds) {
         for (String commitId : commitIds) {
-            Commit currentCommit = getCommit(commitId);
-            if (Objects.equals(message, currentCommit.getMessage())) {
-                System.out.println(commitId);
-                foundCommit = true;
-            }
+            System.out.println(commitId);
         }
-        if (!foundCommit) {
+        if (commitIds.isEmpty()) {
             System.out.println("Found no commit with that message.");
         }
     }
@@ -318,23 +331,18 @@ public class Repository {
 
         // Print staged files.
         System.out.println("=== Staged Files ===");
-        List<String> stagedFiles = plainFilenamesIn(ADD_DIR);
-        if (stagedFiles != null) {
-            Collections.sort(stagedFiles);
-            for (String stagedFile : stagedFiles) {
-                System.out.println(stagedFile);
-            }
+        StagingIndex index = StagingIndex.get();
+        List<String> stagedFiles = index.stagedFiles();
+        for (String stagedFile : stagedFiles) {
+            System.out.println(stagedFile);
         }
         System.out.println();
 
         // Print removed files.
         System.out.println("=== Removed Files ===");
-        List<String> removedFiles = plainFilenamesIn(REMOVE_DIR);
-        if (removedFiles != null) {
-            Collections.sort(removedFiles);
-            for (String removedFile : removedFiles) {
-                System.out.println(removedFile);
-            }
+        List<String> removedFiles = index.removedFiles();
+        for (String removedFile : removedFiles) {
+            System.out.println(removedFile);
         }
         System.out.println();
 
@@ -344,7 +352,7 @@ public class Repository {
         // Print untracked files
         System.out.println("=== Untracked Files ===");
         List<String> printOutUntrackedFiles = new ArrayList<>(5);
-        List<String> filesInWorkingDirectory = plainFilenamesIn(CWD);
+        List<String> filesInWorkingDirectory = workingFiles("");
         Commit headCommit = getHeadCommit();
         Map<String, String> headTrackedFiles = headCommit.getTrackedFiles();
         if (filesInWorkingDirectory != null) {
@@ -352,20 +360,14 @@ public class Repository {
                 if (headTrackedFiles.containsKey(fileInWorkingDirectory)) {
                     continue;
                 }
-                if (stagedFiles != null) {
-                    if (stagedFiles.contains(fileInWorkingDirectory)) {
-                        continue;
-                    }
+                if (index.isStaged(fileInWorkingDirectory)) {
+                    continue;
                 }
                 printOutUntrackedFiles.add(fileInWorkingDirectory);
             }
-        }
-        if (removedFiles != null) {
             for (String removedFile : removedFiles) {
-                if (filesInWorkingDirectory != null) {
-                    if (filesInWorkingDirectory.contains(removedFile)) {
-                        printOutUntrackedFiles.add(removedFile);
-                    }
+                if (filesInWorkingDirectory.contains(removedFile)) {
+                    printOutUntrackedFiles.add(removedFile);
                 }
             }
         }
@@ -374,6 +376,9 @@ public class Repository {
             System.out.println(printOutUntrackedFile);
         }
         System.out.println();
+
+        // Keep the hashes computed above for the next command.
+        index.save();
     }
 
     /**
@@ -382,6 +387,7 @@ public class Repository {
      * @param fileName The file to check out
      */
     public static void checkOutFile(String fileName) {
+        fileName = normalizePath(fileName);
         Commit headCommit = getHeadCommit();
         Map<String, String> trackedFiles = headCommit.getTrackedFiles();
         if (!trackedFiles.containsKey(fileName)) {
@@ -389,6 +395,7 @@ public class Repository {
         }
         File checkoutFile = join(CWD, fileName);
         if (!checkoutFile.exists()) {
+            checkoutFile.getParentFile().mkdirs();
             try {
                 checkoutFile.createNewFile();
             } catch (IOException e) {
@@ -396,7 +403,7 @@ public class Repository {
             }
         }
         String fileHash = trackedFiles.get(fileName);
-        writeContents(checkoutFile, (Object) readContents(join(BLOBS_DIR, fileHash)));
+        writeContents(checkoutFile, (Object) readBlob(fileHash));
     }
 
     /**
@@ -406,6 +413,7 @@ public class Repository {
      * @param fileName The file to check out
      */
     public static void checkOutCommit(String prefix, String fileName) {
+        fileName = normalizePath(fileName);
         Commit destinedCommit = findCorrespondingCommit(prefix);
         Map<String, String> trackedFiles = destinedCommit.getTrackedFiles();
         if (!trackedFiles.containsKey(fileName)) {
@@ -413,6 +421,7 @@ public class Repository {
         }
         File checkoutFile = join(CWD, fileName);
         if (!checkoutFile.exists()) {
+            checkoutFile.getParentFile().mkdirs();
             try {
                 checkoutFile.createNewFile();
             } catch (IOException e) {
@@ -420,7 +429,7 @@ public class Repository {
             }
         }
         String fileHash = trackedFiles.get(fileName);
-        writeContents(checkoutFile, (Object) readContents(join(BLOBS_DIR, fileHash)));
+        writeContents(checkoutFile, (Object) readBlob(fileHash));
     }
 
     /**
@@ -461,6 +470,7 @@ public class Repository {
 
         // Reset HEAD branch.
         writeContents(HEAD_FILE, branchName);
+        forgetState();
 
         // Delete files that are not in the new commit.
         deleteFilesNotInHEADCommit();
@@ -519,22 +529,25 @@ public class Repository {
 
         // Check if there's untracked file.
         // Correct untracked file check for reset
-        List<String> filesInCWD = plainFilenamesIn(CWD);
+        List<String> filesInCWD = workingFiles("");
+        Map<String, String> headTrackedFiles = getHeadCommit().getTrackedFiles();
         if (filesInCWD != null) {
+            // Files NOT tracked by current HEAD that the reset target commit
+            // WOULD overwrite.
+            List<String> inTheWay = new ArrayList<>();
             for (String fileInCWD : filesInCWD) {
-                // If this file is NOT tracked by current HEAD
-                if (!getHeadCommit().getTrackedFiles().containsKey(fileInCWD)) {
-                    // And if the reset target commit WOULD overwrite this file
-                    if (destinedTrackedFiles.containsKey(fileInCWD)) {
-                        // Compute hash to check if it’s actually identical
-                        File working = join(CWD, fileInCWD);
-                        String workingHash = generateHash(working);
-                        String targetHash = destinedTrackedFiles.get(fileInCWD);
-                        if (!workingHash.equals(targetHash)) {
-                            quit("There is an untracked file in the way; "
-                                    + "delete it, or add and commit it first.");
-                        }
-                    }
+                if (!headTrackedFiles.containsKey(fileInCWD)
+                        && destinedTrackedFiles.containsKey(fileInCWD)) {
+                    inTheWay.add(fileInCWD);
+                }
+            }
+            // Compute hashes to check if they’re actually identical
+            Map<String, String> workingHashes = StagingIndex.get().hashAll(inTheWay, CWD);
+            for (Map.Entry<String, String> working : workingHashes.entrySet()) {
+                String targetHash = destinedTrackedFiles.get(working.getKey());
+                if (!working.getValue().equals(targetHash)) {
+                    quit("There is an untracked file in the way; "
+                            + "delete it, or add and commit it first.");
                 }
             }
         }
@@ -550,6 +563,7 @@ public class Repository {
         } else {
             writeContents(join(HEADS_DIR, branchName), destinedCommit.getId());
         }
+        forgetState();
 
         // Delete files not in current HEAD commit.
         deleteFilesNotInHEADCommit();
@@ -571,7 +585,7 @@ public class Repository {
      */
     public static void merge(String branchName) {
         // Check if there are staged files uncommited.
-        if (hasFiles(ADD_DIR) || hasFiles(REMOVE_DIR)) {
+        if (StagingIndex.get().hasStagedChanges()) {
             quit("You have uncommited changes.");
         }
 
@@ -608,9 +622,9 @@ public class Repository {
         }
 
         // Non-special cases below.
-        mergeOrdinaryCase(branchName);
+        mergeOrdinaryCase(currentCommit, givenBranchCommit, splitPointCommit);
 
-        mergeFilesInGiven(branchName);
+        mergeFilesInGiven(currentCommit, givenBranchCommit, splitPointCommit);
 
         // Commit all those changes.
         String message = "Merged " + branchName + " into " + currentBranchName + ".";
@@ -702,9 +716,10 @@ public class Repository {
 
     /**
      * Add a directory as a remote repo, so that user can access it by the name.
+     * A remote served by "gitlet serve" is added by its gitlet://HOST:PORT URL.
      *
      * @param remoteName The name of the repo
-     * @param remoteDirectory The path of the directory
+     * @param remoteDirectory The path of the directory, or the URL
      */
     public static void addRemote(String remoteName, String remoteDirectory) {
         File remoteFile = join(REMOTE_DIR, remoteName);
@@ -716,7 +731,8 @@ public class Repository {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        String normalizedPath = remoteDirectory.replace("/", File.separator);
+        String normalizedPath = PackClient.isUrl(remoteDirectory)
+                ? remoteDirectory : remoteDirectory.replace("/", File.separator);
         writeContents(remoteFile, normalizedPath);
 
         // Create a directory in REFS_REMOTE_DIR
@@ -744,13 +760,18 @@ public class Repository {
      *
      * @param remoteName The remote repo to push to
      * @param remoteBranch The branch of remote repo to append commits to
+     * @param dryRun Print the manifest of the objects to copy instead of copying
      */
-    public static void push(String remoteName, String remoteBranch) {
+    public static void push(String remoteName, String remoteBranch, boolean dryRun) {
         File remoteInfo = join(REMOTE_DIR, remoteName);
         if (!remoteInfo.exists()) {
             quit("A remote with that name does not exist.");
         }
         String remotePath = readContentsAsString(remoteInfo);
+        if (PackClient.isUrl(remotePath)) {
+            pushToServer(remotePath, remoteBranch, dryRun);
+            return;
+        }
         File gitletDirRm = Paths.get(remotePath).toFile();
 
         if (!(gitletDirRm.exists() && gitletDirRm.isDirectory())) {
@@ -759,7 +780,7 @@ public class Repository {
 
         File branchRmFile = join(gitletDirRm, "refs", "heads", remoteBranch);
         // If the branch in remote repo does not exist, add the branch.
-        if (!branchRmFile.exists()) {
+        if (!branchRmFile.exists() && !dryRun) {
             try {
                 branchRmFile.createNewFile();
             } catch (IOException e) {
@@ -778,63 +799,104 @@ public class Repository {
             quit("Please pull down remote changes before pushing.");
         }
 
-        // Get the set of commits to copy to repo.
+        // Get the set of commits to copy to repo, stopping at any branch it has.
         String currentCommitId = getHeadCommit().getId();
+        Set<String> tips = findBranchTips(gitletDirRm);
+        tips.add(headCommitIdRm);
         Set<String> idsNeedCopying = findCommitsNeedCopying(
-                headCommitIdRm, currentCommitId, GITLET_DIR);
-
-        // Copy the commits and blobs to the repo.
-        File commitDirRm = join(gitletDirRm, "objects", "commits");
-        for (String id : idsNeedCopying) {
-            // Write commit.
-            File commitFileRm = join(commitDirRm, id);
-            File commitFileLc = join(COMMITS_DIR, id);
-            if (commitFileRm.exists()) {
-                continue;
-            }
-            try {
-                commitFileRm.createNewFile();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-            writeObject(commitFileRm, readObject(commitFileLc, Commit.class));
-
-            // Write blobs.
-            Map<String, String> trackedFiles = getCommit(id).getTrackedFiles();
-            for (String trackedFile : trackedFiles.keySet()) {
-                String blobId = trackedFiles.get(trackedFile);
-                File blobFileRm = join(gitletDirRm, "objects", "blobs", blobId);
-                File blobFileLc = join(BLOBS_DIR, blobId);
+                tips, currentCommitId, GITLET_DIR);
 
-                if (blobFileRm.exists()) {
-                    continue;
-                }
-                try {
-                    blobFileRm.createNewFile();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-                writeContents(blobFileRm, (Object) readContents(blobFileLc));
-            }
+        // Copy the commits, trees and blobs to the repo.
+        Transfer transfer = Transfer.plan(GITLET_DIR, gitletDirRm, idsNeedCopying, tips);
+        if (dryRun) {
+            System.out.println(transfer.manifest());
+            return;
         }
+        transfer.run();
 
-        // Change the branch's head commit.
+        // Change the branch's head commit, now that every object is written.
         writeContents(branchRmFile, currentCommitId);
     }
 
+    /**
+     * Push the current branch to a branch of a remote served by "gitlet serve".
+     *
+     * @param url The URL of the remote
+     * @param remoteBranch The branch of remote repo to append commits to
+     * @param dryRun Print the manifest of the objects to copy instead of copying
+     */
+    private static void pushToServer(String url, String remoteBranch, boolean dryRun) {
+        try (PackClient remote = PackClient.connect(url)) {
+            String headCommitIdRm = remote.startPush(remoteBranch);
+            if (!findCommitIdInHistory(headCommitIdRm)) {
+                quit("Please pull down remote changes before pushing.");
+            }
+
+            // Plan against the remote's branches, then ask it which objects it has.
+            String currentCommitId = getHeadCommit().getId();
+            Set<String> tips = remote.tips();
+            tips.add(headCommitIdRm);
+            Set<String> idsNeedCopying = findCommitsNeedCopying(
+                    tips, currentCommitId, GITLET_DIR);
+            Transfer transfer = Transfer.plan(GITLET_DIR, idsNeedCopying, tips);
+            remote.negotiate(transfer);
+            if (dryRun) {
+                System.out.println(transfer.manifest());
+                return;
+            }
+            remote.sendPack(transfer, currentCommitId);
+        }
+    }
+
     /**
      * Get all the commits in remote repo to local repo, create a new branch in local,
      * but not merge.
      *
      * @param remoteName The name of remote repo to fetch from
      * @param remoteBranch The branch of remote repo to fetch
+     * @param dryRun Print the manifest of the objects to copy instead of copying
      */
-    public static void fetch(String remoteName, String remoteBranch) {
+    public static void fetch(String remoteName, String remoteBranch, boolean dryRun) {
         File remoteInfo = join(REMOTE_DIR, remoteName);
         if (!remoteInfo.exists()) {
             quit("A remote with that name does not exist.");
         }
         String remotePath = readContentsAsString(remoteInfo);
+        String headIdRm;
+        if (PackClient.isUrl(remotePath)) {
+            headIdRm = fetchFromServer(remotePath, remoteBranch, dryRun);
+        } else {
+            headIdRm = fetchFromDirectory(remotePath, remoteBranch, dryRun);
+        }
+        if (dryRun) {
+            return;
+        }
+
+        // Create a new branch in local, now that every object is written.
+        File branchDir = join(REFS_REMOTES_DIR, remoteName);
+        File branchFile = join(branchDir, remoteBranch);
+        if (!branchFile.exists()) {
+            try {
+                branchFile.createNewFile();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        writeContents(branchFile, headIdRm);
+        forgetState();
+    }
+
+    /**
+     * Copy the commits of a remote branch that the local repo lacks from
+     * the remote's directory.
+     *
+     * @param remotePath The path of the remote's .gitlet directory
+     * @param remoteBranch The branch of remote repo to fetch
+     * @param dryRun Print the manifest of the objects to copy instead of copying
+     * @return The head commit of the remote branch
+     */
+    private static String fetchFromDirectory(String remotePath, String remoteBranch,
+                                             boolean dryRun) {
         File gitletDirRm = Paths.get(remotePath).toFile();
 
         if (!(gitletDirRm.exists() && gitletDirRm.isDirectory())) {
@@ -846,70 +908,77 @@ public class Repository {
             quit("That remote does not have that branch.");
         }
 
-        // Get the set of commits to copy to local repo.
-        String headIdLc = getHeadCommit().getId();
+        // Get the set of commits to copy to local repo, stopping at any branch it has.
         String headIdRm = readContentsAsString(branchRmFile);
-        Set<String> idsNeedCopying = findCommitsNeedCopying(headIdLc, headIdRm, gitletDirRm);
+        Set<String> tips = findBranchTips(GITLET_DIR);
+        Set<String> idsNeedCopying = findCommitsNeedCopying(tips, headIdRm, gitletDirRm);
 
         // Copy all files into local repo.
-        File commitDirRm = join(gitletDirRm, "objects", "commits");
-        for (String id : idsNeedCopying) {
-            // Write commit.
-            File commitFileRm = join(commitDirRm, id);
-            File commitFileLc = join(COMMITS_DIR, id);
-            if (commitFileLc.exists()) {
-                continue;
-            }
-            try {
-                commitFileLc.createNewFile();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-            writeObject(commitFileLc, readObject(commitFileRm, Commit.class));
-
-            // Write blobs.
-            Map<String, String> trackedFiles = getCommit(id, gitletDirRm).getTrackedFiles();
-            for (String trackedFile : trackedFiles.keySet()) {
-                String blobId = trackedFiles.get(trackedFile);
-                File blobFileRm = join(gitletDirRm, "objects", "blobs", blobId);
-                File blobFileLc = join(BLOBS_DIR, blobId);
-
-                if (blobFileLc.exists()) {
-                    continue;
-                }
-                try {
-                    blobFileRm.createNewFile();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-                writeContents(blobFileLc, (Object) readContents(blobFileRm));
-            }
+        Transfer transfer = Transfer.plan(gitletDirRm, GITLET_DIR, idsNeedCopying, tips);
+        if (dryRun) {
+            System.out.println(transfer.manifest());
+        } else {
+            transfer.run();
         }
+        return headIdRm;
+    }
 
-        // Create a new branch in local.
-        File branchDir = join(REFS_REMOTES_DIR, remoteName);
-        File branchFile = join(branchDir, remoteBranch);
-        if (!branchFile.exists()) {
-            try {
-                branchFile.createNewFile();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    /**
+     * Copy the commits of a remote branch that the local repo lacks from
+     * a remote served by "gitlet serve". The server plans the transfer
+     * against the local branches and streams the objects as a pack.
+     *
+     * @param url The URL of the remote
+     * @param remoteBranch The branch of remote repo to fetch
+     * @param dryRun Print the manifest of the objects to copy instead of copying
+     * @return The head commit of the remote branch
+     */
+    private static String fetchFromServer(String url, String remoteBranch, boolean dryRun) {
+        try (PackClient remote = PackClient.connect(url)) {
+            String headIdRm = remote.startFetch(remoteBranch, findBranchTips(GITLET_DIR), dryRun);
+            if (dryRun) {
+                System.out.println(remote.readManifest());
+            } else {
+                remote.receivePack();
             }
+            return headIdRm;
         }
-        writeContents(branchFile, headIdRm);
     }
 
     public static void pull(String remoteName, String remoteBranch) {
         checkUntrackedFiles();
-        fetch(remoteName, remoteBranch);
+        fetch(remoteName, remoteBranch, false);
         String branchName = remoteName + "/" + remoteBranch;
         merge(branchName);
     }
 
+    /**
+     * Fold all loose commits and blobs into the pack of this repository,
+     * and rewrite the commit graph, the commit index and the message indexes.
+     */
+    public static void repack() {
+        ObjectStore.local().repack();
+        CommitGraph.of(GITLET_DIR).write();
+        CommitIndex.of(GITLET_DIR).rebuild();
+        MessageIndex.of(GITLET_DIR).rebuild();
+    }
+
+    /**
+     * Move loose commits and blobs of a repository made before objects were
+     * split into fan-out subdirectories into those subdirectories.
+     */
+    public static void migrateObjects() {
+        int moved = ObjectStore.local().migrateLoose();
+        System.out.println("Moved " + moved + " objects.");
+    }
+
     /**
      * Get the head commit by getting HEAD id in persistence.
      */
     private static Commit getHeadCommit() {
+        if (headCommit != null) {
+            return headCommit;
+        }
         String branch = readContentsAsString(HEAD_FILE);
         String headCommitId = null;
         if (branch.contains("/")) {
@@ -920,7 +989,16 @@ public class Repository {
         } else {
             headCommitId = readContentsAsString(join(HEADS_DIR, branch));
         }
-        return readObject(join(COMMITS_DIR, headCommitId), Commit.class);
+        headCommit = getCommit(headCommitId);
+        return headCommit;
+    }
+
+    /**
+     * Forget the head commit read by earlier commands run in this process,
+     * so that the next command reads HEAD again.
+     */
+    static void forgetState() {
+        headCommit = null;
     }
 
     /**
@@ -930,7 +1008,7 @@ public class Repository {
      * @return The Commit corresponding to this id
      */
     private static Commit getCommit(String id) {
-        return readObject(join(COMMITS_DIR, id), Commit.class);
+        return getCommit(id, GITLET_DIR);
     }
 
     /**
@@ -941,65 +1019,26 @@ public class Repository {
      * @return The commit corresponding to this id
      */
     private static Commit getCommit(String id, File gitletDir) {
-        return readObject(join(gitletDir, "objects", "commits", id), Commit.class);
+        return CommitCache.instance().get(gitletDir, id);
     }
 
     /**
-     * Print out the log information of one commit.
+     * Get the contents of a blob by its id.
      *
-     * @param currentCommit The commit to print log
+     * @param blobId The id of the blob
+     * @return The contents of the blob
      */
-    private static void printLog(Commit currentCommit) {
-        System.out.println("===");
-        System.out.println("commit " + currentCommit.getId());
-        if (currentCommit.getSecondParent() != null) {
-            System.out.println("Merge: " + currentCommit.getParent().substring(0, 7)
-                    + " " + currentCommit.getSecondParent().substring(0, 7));
-        }
-        System.out.println("Date: " + currentCommit.getTimestamp());
-        System.out.println(currentCommit.getMessage());
-        System.out.println();
+    private static byte[] readBlob(String blobId) {
+        return ObjectStore.local().read(ObjectStore.BLOB, blobId);
     }
 
     /**
      * Clear the files in staging area.
      */
     private static void clearStaging() {
-        deleteChildren(ADD_DIR);
-        deleteChildren(REMOVE_DIR);
-    }
-
-    /**
-     * Delete children files and directories recursively.
-     *
-     * @param dir The directory to delete children
-     */
-    private static void deleteChildren(File dir) {
-        if (dir == null || !dir.exists() || !dir.isDirectory()) {
-            return;
-        }
-        File[] files = dir.listFiles();
-        if (files == null) {
-            return;
-        }
-        for (File f : files) {
-            if (f.isDirectory()) {
-                deleteChildren(f);
-            }
-            if (!f.delete()) {
-                throw new RuntimeException("Failed to delete staging file: " + f.getPath());
-            }
-        }
-    }
-
-    /**
-     * Generate SHA-1 hash for a file.
-     *
-     * @param file The file to generate hash
-     * @return The hash of the file
-     */
-    private static String generateHash(File file) {
-        return Utils.sha1((Object) readContents(file));
+        StagingIndex index = StagingIndex.get();
+        index.clearStaging();
+        index.save();
     }
 
     /**
@@ -1009,14 +1048,7 @@ public class Repository {
      * @return The wanted commit
      */
     private static Commit findCorrespondingCommit(String prefix) {
-        List<String> commitIds = plainFilenamesIn(COMMITS_DIR);
-        List<String> qualifiedIds = new ArrayList<>();
-        assert commitIds != null;
-        for (String commitId : commitIds) {
-            if (commitId.startsWith(prefix)) {
-                qualifiedIds.add(commitId);
-            }
-        }
+        List<String> qualifiedIds = CommitIndex.of(GITLET_DIR).resolve(prefix);
         if (qualifiedIds.isEmpty()) {
             quit("No commit with that id exists.");
         } else if (qualifiedIds.size() > 1) {
@@ -1029,7 +1061,7 @@ public class Repository {
      * Check if there are untracked files exist. If so, print a message.
      */
     private static void checkUntrackedFiles() {
-        List<String> filesInCWD = plainFilenamesIn(CWD);
+        List<String> filesInCWD = workingFiles("");
         Map<String, String> headTrackedFiles = getHeadCommit().getTrackedFiles();
         if (filesInCWD != null) {
             for (String fileInCWD : filesInCWD) {
@@ -1046,58 +1078,164 @@ public class Repository {
      * Delete the files that are not in current commit.
      */
     private static void deleteFilesNotInHEADCommit() {
-        List<String> filesInCWD = plainFilenamesIn(CWD);
+        List<String> filesInCWD = workingFiles("");
         Map<String, String> headTrackedFiles = getHeadCommit().getTrackedFiles();
         if (filesInCWD != null) {
             for (String fileInCWD : filesInCWD) {
                 if (headTrackedFiles.containsKey(fileInCWD)) {
                     continue;
                 }
-                restrictedDelete(fileInCWD);
+                deleteWorkingFile(fileInCWD);
+                deletedCount++;
             }
         }
     }
 
+    /**
+     * List the files in the working directory, or in one of its
+     * subdirectories, and in all the directories below. The .gitlet
+     * directory is skipped.
+     *
+     * @param dir The subdirectory to list, "" for the whole working directory
+     * @return The paths of the files relative to CWD, with "/" between
+     *         directory names, in lexicographic order
+     */
+    private static List<String> workingFiles(String dir) {
+        List<String> paths = new ArrayList<>();
+        String prefix = dir.isEmpty() || dir.endsWith("/") ? dir : dir + "/";
+        collectWorkingFiles(join(CWD, dir), prefix, paths);
+        Collections.sort(paths);
+        return paths;
+    }
+
+    /**
+     * Turn a file name given on the command line into the path of the same
+     * file relative to the working directory, with "/" between its parts,
+     * as the staging index and the trees hold it. "." and ".." parts and
+     * repeated slashes are resolved; the working directory itself is "".
+     * Paths outside the working directory or inside .gitlet are refused.
+     *
+     * @param fileName The file name, relative to the working directory or absolute
+     * @return The normalized path
+     */
+    private static String normalizePath(String fileName) {
+        Path root = CWD.toPath().toAbsolutePath().normalize();
+        Path target;
+        try {
+            target = root.resolve(fileName).normalize();
+        } catch (InvalidPathException excp) {
+            throw new GitletException("File does not exist.");
+        }
+        if (!target.startsWith(root)) {
+            quit("File is outside the working directory.");
+        }
+        if (target.equals(root)) {
+            return "";
+        }
+        List<String> parts = new ArrayList<>();
+        for (Path part : root.relativize(target)) {
+            parts.add(part.toString());
+        }
+        if (parts.get(0).equals(".gitlet")) {
+            quit("Cannot use files inside .gitlet.");
+        }
+        return String.join("/", parts);
+    }
+
+    /**
+     * Add the paths of the files in a directory and all the directories
+     * below it to PATHS.
+     *
+     * @param dir The directory
+     * @param prefix The path of DIR relative to CWD, ending in "/", or ""
+     * @param paths The list of paths to add to
+     */
+    private static void collectWorkingFiles(File dir, String prefix, List<String> paths) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile()) {
+                paths.add(prefix + file.getName());
+            } else if (file.isDirectory() && !file.getName().equals(".gitlet")) {
+                collectWorkingFiles(file, prefix + file.getName() + "/", paths);
+            }
+        }
+    }
+
+    /**
+     * Delete a file of the working directory, if it exists, and then every
+     * directory above it that is left empty.
+     *
+     * @param fileName The path of the file relative to CWD
+     */
+    private static void deleteWorkingFile(String fileName) {
+        File file = join(CWD, fileName);
+        if (file.isDirectory()) {
+            return;
+        }
+        file.delete();
+        File dir = file.getParentFile();
+        while (!dir.equals(CWD) && dir.delete()) {
+            dir = dir.getParentFile();
+        }
+    }
+
     /**
      * Write everything in one Commit to current directory.
+     * Working files are compared with the commit by blob id, using the
+     * stat cache, and only those whose contents differ are written.
      *
      * @param targetCommit The commit to get files from
      */
     private static void writeAllFilesCWD(Commit targetCommit) {
         Map<String, String> trackedFilesBranch = targetCommit.getTrackedFiles();
+        StagingIndex index = StagingIndex.get();
+        Map<String, String> workingHashes = index.hashAll(trackedFilesBranch.keySet(), CWD);
         for (String fileName : trackedFilesBranch.keySet()) {
+            String blobId = trackedFilesBranch.get(fileName);
+            if (blobId.equals(workingHashes.get(fileName))) {
+                upToDateCount++;
+                continue;
+            }
             File fileCurWorkingDir = join(CWD, fileName);
             if (!fileCurWorkingDir.exists()) {
+                fileCurWorkingDir.getParentFile().mkdirs();
                 try {
                     fileCurWorkingDir.createNewFile();
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
             }
-            writeContents(fileCurWorkingDir, (Object) readContents(
-                    join(BLOBS_DIR, trackedFilesBranch.get(fileName))));
+            writeContents(fileCurWorkingDir, (Object) readBlob(blobId));
+            index.track(fileName, blobId, StagingIndex.Stat.of(fileCurWorkingDir));
+            writtenCount++;
         }
     }
 
-    /**
-     * Check if a directory has files inside.
-     *
-     * @param directory The directory to check
-     * @return True if it has files
-     */
-    private static boolean hasFiles(File directory) {
-        File[] files = directory.listFiles();
-        return files != null && files.length > 0;
+    /** Return the number of working files written by checkout and reset. */
+    static long writtenCount() {
+        return writtenCount;
+    }
+
+    /** Return the number of working files checkout and reset left as they were. */
+    static long upToDateCount() {
+        return upToDateCount;
+    }
+
+    /** Return the number of working files deleted by checkout and reset. */
+    static long deletedCount() {
+        return deletedCount;
     }
 
     /**
-     * Quit the program with the message.
+     * Quit the command with the message, which Main prints.
      *
      * @param message The message to print
      */
     private static void quit(String message) {
-        System.out.println(message);
-        System.exit(0);
+        throw new GitletException(message);
     }
 
     /**
@@ -1111,65 +1249,31 @@ public class Repository {
         if (c1 == null || c2 == null) {
             return null;
         }
-        // 收集 c1 的所有祖先（包括自身）
-        Set<String> ancestors1 = new HashSet<>();
-        Deque<Commit> stack = new ArrayDeque<>();
-        stack.push(c1);
-        while (!stack.isEmpty()) {
-            Commit cur = stack.pop();
-            String id = cur.getId();
-            if (ancestors1.contains(id)) {
-                continue;
-            }
-            ancestors1.add(id);
-            if (cur.getParent() != null) {
-                stack.push(getCommit(cur.getParent()));
-            }
-            if (cur.getSecondParent() != null) {
-                stack.push(getCommit(cur.getSecondParent()));
-            }
-        }
-        // 从 c2 开始做 BFS，找到第一个出现在 ancestors1 的提交（即最近的公共祖先）
-        Deque<Commit> queue = new ArrayDeque<>();
-        Set<String> visited2 = new HashSet<>();
-        queue.add(c2);
-        while (!queue.isEmpty()) {
-            Commit cur = queue.remove();
-            String id = cur.getId();
-            if (visited2.contains(id)) {
-                continue;
-            }
-            visited2.add(id);
-            if (ancestors1.contains(id)) {
-                return cur;
-            }
-            if (cur.getParent() != null) {
-                queue.add(getCommit(cur.getParent()));
-            }
-            if (cur.getSecondParent() != null) {
-                queue.add(getCommit(cur.getSecondParent()));
-            }
-        }
-        return null;
+        String splitId = CommitGraph.of(GITLET_DIR).mergeBase(c1.getId(), c2.getId());
+        return splitId == null ? null : getCommit(splitId);
     }
 
     /**
      * Deel with merge conflict. Form a file with special content.
      *
      * @param fileName The name of the conflict file
-     * @param currentFile The file from current branch, null if not exist
-     * @param givenFile The file from given branch, null if not exist
+     * @param currentBlobId The blob from current branch, null if not exist
+     * @param givenBlobId The blob from given branch, null if not exist
      */
-    private static void deelWithConflictMerge(String fileName, File currentFile, File givenFile) {
+    private static void deelWithConflictMerge(String fileName, String currentBlobId,
+                                              String givenBlobId) {
         System.out.println("Encountered a merge conflict.");
 
-        String currentContent = (currentFile == null) ? "" : readContentsAsString(currentFile);
-        String givenContent = (givenFile == null) ? "" : readContentsAsString(givenFile);
+        String currentContent = (currentBlobId == null) ? ""
+                : new String(readBlob(currentBlobId), StandardCharsets.UTF_8);
+        String givenContent = (givenBlobId == null) ? ""
+                : new String(readBlob(givenBlobId), StandardCharsets.UTF_8);
 
         String newContent = "<<<<<<< HEAD\n" + currentContent
                 + "=======\n" + givenContent + ">>>>>>>\n";
         File newContentFile = join(CWD, fileName);
         if (!newContentFile.exists()) {
+            newContentFile.getParentFile().mkdirs();
             try {
                 newContentFile.createNewFile();
             } catch (IOException e) {
@@ -1177,7 +1281,7 @@ public class Repository {
             }
         }
         writeContents(newContentFile, newContent);
-        add(fileName);
+        add(List.of(fileName));
     }
 
     /**
@@ -1186,50 +1290,44 @@ public class Repository {
     private static void printModifiedNotStagedFiles() {
         System.out.println("=== Modifications Not Staged For Commit ===");
         List<String> printOutFiles = new ArrayList<>(5);
-        List<String> stagedFiles = plainFilenamesIn(ADD_DIR);
-        List<String> removedFiles = plainFilenamesIn(REMOVE_DIR);
+        StagingIndex index = StagingIndex.get();
+        List<String> stagedFiles = index.stagedFiles();
+        List<String> removedFiles = index.removedFiles();
         // Get the file tracked in the current commit,
         // changed in the working directory, but not staged.
+        // Files whose stat data is unchanged since they were last hashed
+        // are not read again; the others are hashed together.
         Commit headCommit = getHeadCommit();
         Map<String, String> headTrackedFiles = headCommit.getTrackedFiles();
+        Set<String> filesToHash = new HashSet<>(headTrackedFiles.keySet());
+        filesToHash.addAll(stagedFiles);
+        Map<String, String> workingHashes = index.hashAll(filesToHash, CWD);
         for (String trackedFileName : headTrackedFiles.keySet()) {
-            if (stagedFiles != null) {
-                if (stagedFiles.contains(trackedFileName)) {
-                    continue;
-                }
+            if (index.isStaged(trackedFileName)) {
+                continue;
             }
-            File fileInWorkingDir = join(CWD, trackedFileName);
-            if (fileInWorkingDir.exists()) {
-                String currentHash = generateHash(fileInWorkingDir);
-                if (!currentHash.equals(headTrackedFiles.get(trackedFileName))) {
-                    printOutFiles.add(trackedFileName + " (modified)");
-                }
+            String currentHash = workingHashes.get(trackedFileName);
+            if (currentHash != null
+                    && !currentHash.equals(headTrackedFiles.get(trackedFileName))) {
+                printOutFiles.add(trackedFileName + " (modified)");
             }
         }
         // Get the file staged for addition,
         // but with different contents than in the working directory;
         // and get the file staged for addition, but deleted in the working directory.
-        if (stagedFiles != null) {
-            for (String stagedFile : stagedFiles) {
-                File fileInWorkingDir = join(CWD, stagedFile);
-                if (!fileInWorkingDir.exists()) {
-                    printOutFiles.add(stagedFile + " (deleted)");
-                }
-                String addHashOrigin = readContentsAsString(join(ADD_DIR, stagedFile));
-                if (fileInWorkingDir.exists()) {
-                    if (!generateHash(fileInWorkingDir).equals(addHashOrigin)) {
-                        printOutFiles.add(stagedFile + " (modified)");
-                    }
-                }
+        for (String stagedFile : stagedFiles) {
+            String currentHash = workingHashes.get(stagedFile);
+            if (currentHash == null) {
+                printOutFiles.add(stagedFile + " (deleted)");
+            } else if (!currentHash.equals(index.stagedBlob(stagedFile))) {
+                printOutFiles.add(stagedFile + " (modified)");
             }
         }
         // Get the file Not staged for removal,
         // but tracked in the current commit and deleted from the working directory.
         for (String trackedFileName : headTrackedFiles.keySet()) {
-            if (removedFiles != null) {
-                if (removedFiles.contains(trackedFileName)) {
-                    continue;
-                }
+            if (removedFiles.contains(trackedFileName)) {
+                continue;
             }
             File fileInWorkingDir = join(CWD, trackedFileName);
             if (!fileInWorkingDir.exists()) {
@@ -1333,13 +1431,12 @@ public class Repository {
     /**
      * Merge in ordinary case.
      *
-     * @param branchName The name of the given branch
+     * @param currentCommit The head commit of the current branch
+     * @param givenBranchCommit The head commit of the given branch
+     * @param splitPointCommit The split point of the two branches
      */
-    private static void mergeOrdinaryCase(String branchName) {
-        Commit currentCommit = getHeadCommit();
-        Commit givenBranchCommit = getBranchCommit(branchName);
-        Commit splitPointCommit = getSplitPointCommit(currentCommit, givenBranchCommit);
-
+    private static void mergeOrdinaryCase(Commit currentCommit, Commit givenBranchCommit,
+                                          Commit splitPointCommit) {
         Map<String, String> filesCurrentCommit = currentCommit.getTrackedFiles();
         Map<String, String> filesGivenCommit = givenBranchCommit.getTrackedFiles();
         Map<String, String> filesSplitCommit = splitPointCommit.getTrackedFiles();
@@ -1360,20 +1457,17 @@ public class Repository {
                 // should be changed into the version in the given branch.
                 if (Objects.equals(currentFileHash, splitFileHash)
                         && (!Objects.equals(givenFileHash, splitFileHash))) {
-                    File givenFileBlob = join(BLOBS_DIR, givenFileHash);
-                    writeContents(fileCWD, (Object) readContents(givenFileBlob));
-                    add(fileNameCurrentCommit);
+                    writeContents(fileCWD, (Object) readBlob(givenFileHash));
+                    add(List.of(fileNameCurrentCommit));
                 }
 
                 // Files modified in different ways (3 files exists) are in conflict.
                 if ((!Objects.equals(currentFileHash, givenFileHash))
                         && (!Objects.equals(currentFileHash, splitFileHash))
                         && (!Objects.equals(givenFileHash, splitFileHash))) {
-                    File currentFileBlob = join(BLOBS_DIR,
-                            filesCurrentCommit.get(fileNameCurrentCommit));
-                    File givenFileBlob = join(BLOBS_DIR,
+                    deelWithConflictMerge(fileNameCurrentCommit,
+                            filesCurrentCommit.get(fileNameCurrentCommit),
                             filesGivenCommit.get(fileNameCurrentCommit));
-                    deelWithConflictMerge(fileNameCurrentCommit, currentFileBlob, givenFileBlob);
                 }
             }
 
@@ -1389,9 +1483,8 @@ public class Repository {
                     rm(fileNameCurrentCommit);
                 } else {
                     // Files modified in current, deleted in given, should deel with conflict.
-                    File currentFileBlob = join(BLOBS_DIR,
-                            filesCurrentCommit.get(fileNameCurrentCommit));
-                    deelWithConflictMerge(fileNameCurrentCommit, currentFileBlob, null);
+                    deelWithConflictMerge(fileNameCurrentCommit,
+                            filesCurrentCommit.get(fileNameCurrentCommit), null);
                 }
             }
 
@@ -1402,11 +1495,9 @@ public class Repository {
                 String currentFileHash = filesCurrentCommit.get(fileNameCurrentCommit);
                 String givenFileHash = filesGivenCommit.get(fileNameCurrentCommit);
                 if (!Objects.equals(currentFileHash, givenFileHash)) {
-                    File currentFileBlob = join(BLOBS_DIR,
-                            filesCurrentCommit.get(fileNameCurrentCommit));
-                    File givenFileBlob = join(BLOBS_DIR,
+                    deelWithConflictMerge(fileNameCurrentCommit,
+                            filesCurrentCommit.get(fileNameCurrentCommit),
                             filesGivenCommit.get(fileNameCurrentCommit));
-                    deelWithConflictMerge(fileNameCurrentCommit, currentFileBlob, givenFileBlob);
                 }
             }
         }
@@ -1415,13 +1506,12 @@ public class Repository {
     /**
      * Merge the files from the given branch's leaf commit.
      *
-     * @param branchName The name of the given branch
+     * @param currentCommit The head commit of the current branch
+     * @param givenBranchCommit The head commit of the given branch
+     * @param splitPointCommit The split point of the two branches
      */
-    private static void mergeFilesInGiven(String branchName) {
-        Commit currentCommit = getHeadCommit();
-        Commit givenBranchCommit = getBranchCommit(branchName);
-        Commit splitPointCommit = getSplitPointCommit(currentCommit, givenBranchCommit);
-
+    private static void mergeFilesInGiven(Commit currentCommit, Commit givenBranchCommit,
+                                          Commit splitPointCommit) {
         Map<String, String> filesCurrentCommit = currentCommit.getTrackedFiles();
         Map<String, String> filesGivenCommit = givenBranchCommit.getTrackedFiles();
         Map<String, String> filesSplitCommit = splitPointCommit.getTrackedFiles();
@@ -1430,7 +1520,7 @@ public class Repository {
             if ((!filesCurrentCommit.containsKey(fileNameGivenCommit))
                     && (!filesSplitCommit.containsKey(fileNameGivenCommit))) {
                 checkOutCommit(givenBranchCommit.getId(), fileNameGivenCommit);
-                add(fileNameGivenCommit);
+                add(List.of(fileNameGivenCommit));
             }
             // Files modified in given, deleted in current, should deel with conflict.
             if ((!filesCurrentCommit.containsKey(fileNameGivenCommit))
@@ -1438,9 +1528,8 @@ public class Repository {
                 String givenFileHash = filesGivenCommit.get(fileNameGivenCommit);
                 String splitFileHash = filesSplitCommit.get(fileNameGivenCommit);
                 if (!Objects.equals(givenFileHash, splitFileHash)) {
-                    File givenFileBlob = join(BLOBS_DIR,
+                    deelWithConflictMerge(fileNameGivenCommit, null,
                             filesGivenCommit.get(fileNameGivenCommit));
-                    deelWithConflictMerge(fileNameGivenCommit, null, givenFileBlob);
                 }
             }
         }
@@ -1453,39 +1542,51 @@ public class Repository {
      * @return True if found
      */
     private static boolean findCommitIdInHistory(String findId) {
-        String headCommitId = getHeadCommit().getId();
-        Stack<String> commitIds = new Stack<>();
-        commitIds.push(headCommitId);
-        while (!commitIds.isEmpty()) {
-            String currentId = commitIds.pop();
-            if (getCommit(currentId).getParent() != null) {
-                String parentId = getCommit(currentId).getParent();
-                if (Objects.equals(parentId, findId)) {
-                    return true;
-                } else {
-                    commitIds.push(parentId);
-                }
+        if (!ObjectStore.local().contains(ObjectStore.COMMIT, findId)) {
+            return false;
+        }
+        return CommitGraph.of(GITLET_DIR).isAncestor(findId, getHeadCommit().getId());
+    }
+
+    /**
+     * Find the commits at the tips of the branches of a repo, including
+     * its remote-tracking branches, as it advertises them to transfers.
+     *
+     * @param gitletDir The .gitlet directory of the repo
+     * @return The set of commit ids
+     */
+    static Set<String> findBranchTips(File gitletDir) {
+        Set<String> tips = new LinkedHashSet<>();
+        List<File> branchDirs = new ArrayList<>();
+        branchDirs.add(join(gitletDir, "refs", "heads"));
+        File[] remoteDirs = join(gitletDir, "refs", "remotes").listFiles(File::isDirectory);
+        if (remoteDirs != null) {
+            branchDirs.addAll(Arrays.asList(remoteDirs));
+        }
+        for (File branchDir : branchDirs) {
+            File[] files = branchDir.listFiles(File::isFile);
+            if (files == null) {
+                continue;
             }
-            if (getCommit(currentId).getSecondParent() != null) {
-                String secondParentId = getCommit(currentId).getSecondParent();
-                if (Objects.equals(secondParentId, findId)) {
-                    return true;
-                } else {
-                    commitIds.push(secondParentId);
+            for (File file : files) {
+                String id = readContentsAsString(file);
+                if (!id.isEmpty()) {
+                    tips.add(id);
                 }
             }
         }
-        return false;
+        return tips;
     }
 
     /**
      * Find the ids of the commits that need to get copied to remote repo.
      *
-     * @param headId The head commit in remote repo
+     * @param tips The commits the remote repo has, where the walk stops
      * @return The set of commit ids
      */
-    private static Set<String> findCommitsNeedCopying(
-            String headId, String currentCommitId, File gitletDir) {
+    static Set<String> findCommitsNeedCopying(
+            Set<String> tips, String currentCommitId, File gitletDir) {
+        CommitGraph graph = CommitGraph.of(gitletDir);
         Set<String> idSet = new HashSet<>();
         Stack<String> idStack = new Stack<>();
         Set<String> visited = new HashSet<>();
@@ -1497,18 +1598,17 @@ public class Repository {
             }
             visited.add(currentId);
 
-            if (Objects.equals(currentId, headId)) {
+            if (tips.contains(currentId)) {
                 continue;
             }
             idSet.add(currentId);
 
-            if (getCommit(currentId, gitletDir).getParent() != null) {
-                String parentId = getCommit(currentId, gitletDir).getParent();
-                idStack.push(parentId);
+            CommitGraph.Node currentNode = graph.node(currentId);
+            if (currentNode.parent != null) {
+                idStack.push(currentNode.parent);
             }
-            if (getCommit(currentId, gitletDir).getSecondParent() != null) {
-                String secondParentId = getCommit(currentId, gitletDir).getSecondParent();
-                idStack.push(secondParentId);
+            if (currentNode.secondParent != null) {
+                idStack.push(currentNode.secondParent);
             }
         }
         return idSet;
@@ -0,0 +1,483 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/** The staging area, kept in one binary file (.gitlet/staging/index).
+ *
+ *  The index holds an entry per path with a blob id, the size, mtime, ctime
+ *  and inode of the working file whose contents hash to that blob id, and
+ *  stage flags. An entry flagged ADDED is staged for addition with its
+ *  blob id; an entry flagged REMOVED is staged for removal; an entry
+ *  without flags only caches the hash of the working file, so that an
+ *  unchanged file need not be read again.
+ *
+ *  A file changed within the same timestamp tick as it was hashed keeps
+ *  its stat data, so an entry is only trusted if the file's mtime is older
+ *  than the index itself; "racily clean" entries are hashed again.
+ *
+ *  Layout: "GSTG", version, count, then for each path in sorted order the
+ *  length-prefixed UTF-8 path, the 20-byte blob id, size, mtime and ctime
+ *  in nanoseconds, inode and flags. Version 1 had no ctime.
+ *
+ *  The index is loaded once per command and written atomically.
+ *
+ *  @author Chen
+ */
+class StagingIndex {
+
+    /** Magic number at the head of the index file. */
+    private static final int MAGIC = 0x47535447;        // "GSTG"
+    /** Version of the index format. */
+    private static final int VERSION = 2;
+    /** Flag of an entry staged for addition. */
+    private static final byte ADDED = 1;
+    /** Flag of an entry staged for removal. */
+    private static final byte REMOVED = 2;
+
+    /** The index of the current repository, once loaded. */
+    private static StagingIndex current;
+
+    /** Number of working files hashed by this process. */
+    private static long hashedCount;
+    /** Number of working files whose hash came from the stat cache. */
+    private static long cachedCount;
+
+    /** The index file. */
+    private final File indexFile;
+    /** Modification time of the index file when last read or written, in
+     *  nanoseconds; entries for files modified since then are not trusted. */
+    private long indexTime;
+    /** Entries by path. */
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+    /** True if the entries differ from the index file. */
+    private boolean dirty;
+
+    /** The stat data of a working file. */
+    static class Stat {
+        /** Size in bytes. */
+        final long size;
+        /** Last modification time in nanoseconds since the epoch. */
+        final long mtime;
+        /** Last status change time in nanoseconds since the epoch,
+         *  0 where the file system has none. */
+        final long ctime;
+        /** Inode number, 0 where the file system has none. */
+        final long inode;
+
+        Stat(long size, long mtime, long ctime, long inode) {
+            this.size = size;
+            this.mtime = mtime;
+            this.ctime = ctime;
+            this.inode = inode;
+        }
+
+        /** Stat data that matches no file. */
+        static final Stat NONE = new Stat(-1, 0, 0, 0);
+
+        /**
+         * Read the stat data of a file.
+         *
+         * @param file The file
+         * @return Its stat data, NONE if it cannot be read
+         */
+        static Stat of(File file) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(file.toPath(),
+                        BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                long ctime = 0;
+                long inode = 0;
+                try {
+                    Map<String, Object> unix = Files.readAttributes(file.toPath(),
+                            "unix:ino,ctime", LinkOption.NOFOLLOW_LINKS);
+                    inode = ((Number) unix.get("ino")).longValue();
+                    ctime = ((FileTime) unix.get("ctime")).to(TimeUnit.NANOSECONDS);
+                } catch (UnsupportedOperationException | IllegalArgumentException excp) {
+                    ctime = 0;
+                    inode = 0;
+                }
+                return new Stat(attrs.size(),
+                        attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), ctime, inode);
+            } catch (IOException excp) {
+                return NONE;
+            }
+        }
+
+        /** Return true if THAT describes the same file state as this. */
+        boolean matches(Stat that) {
+            return size >= 0 && size == that.size && mtime == that.mtime
+                    && ctime == that.ctime && inode == that.inode;
+        }
+    }
+
+    /** One path in the index. */
+    private static class Entry {
+        /** The staged blob, or the hash of the working file. */
+        final String blobId;
+        /** Stat data of the working file hashing to blobId. */
+        final Stat stat;
+        /** Stage flags. */
+        final byte flags;
+
+        Entry(String blobId, Stat stat, byte flags) {
+            this.blobId = blobId;
+            this.stat = stat;
+            this.flags = flags;
+        }
+    }
+
+    private StagingIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Get the index of the current repository, loading it on first use.
+     * A repository whose staging area still uses the staging/add and
+     * staging/remove directories has those entries moved into the index.
+     *
+     * @return The index
+     */
+    static StagingIndex get() {
+        if (current == null) {
+            current = load(Repository.INDEX_FILE);
+            current.importLegacy(Repository.ADD_DIR, ADDED);
+            current.importLegacy(Repository.REMOVE_DIR, REMOVED);
+        }
+        return current;
+    }
+
+    /** Forget the loaded index, so that the next command reads it again. */
+    static void reset() {
+        current = null;
+    }
+
+    /**
+     * Read an index file, or make an empty index if there is none.
+     *
+     * @param indexFile The index file
+     * @return The index
+     */
+    private static StagingIndex load(File indexFile) {
+        StagingIndex index = new StagingIndex(indexFile);
+        if (!indexFile.isFile()) {
+            return index;
+        }
+        index.indexTime = Stat.of(indexFile).mtime;
+        ByteBuffer in = ByteBuffer.wrap(Utils.readContents(indexFile));
+        int version = in.getInt() == MAGIC ? in.getInt() : -1;
+        if (version != 1 && version != VERSION) {
+            throw Utils.error("Corrupt staging index: %s", indexFile.getPath());
+        }
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] path = new byte[in.getInt()];
+            in.get(path);
+            String blobId = ObjectId.toHex(in, in.position());
+            in.position(in.position() + ObjectId.RAW_LENGTH);
+            long size = in.getLong();
+            long mtime = in.getLong();
+            long ctime = version == 1 ? 0 : in.getLong();
+            Stat stat = new Stat(size, mtime, ctime, in.getLong());
+            byte flags = in.get();
+            index.entries.put(new String(path, StandardCharsets.UTF_8),
+                    new Entry(blobId, stat, flags));
+        }
+        return index;
+    }
+
+    /**
+     * Move the entries of an old file-per-entry staging directory into the
+     * index, and delete the directory.
+     *
+     * @param dir The staging/add or staging/remove directory
+     * @param flags The flag of entries from that directory
+     */
+    private void importLegacy(File dir, byte flags) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isFile()) {
+                entries.put(f.getName(), new Entry(Utils.readContentsAsString(f),
+                        Stat.NONE, flags));
+                dirty = true;
+            }
+        }
+        save();
+        for (File f : files) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    /** Write the index to disk atomically, if it has changed. */
+    void save() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                byte[] path = e.getKey().getBytes(StandardCharsets.UTF_8);
+                Entry entry = e.getValue();
+                out.writeInt(path.length);
+                out.write(path);
+                out.write(ObjectId.fromHex(entry.blobId).toByteArray());
+                out.writeLong(entry.stat.size);
+                out.writeLong(entry.stat.mtime);
+                out.writeLong(entry.stat.ctime);
+                out.writeLong(entry.stat.inode);
+                out.writeByte(entry.flags);
+            }
+            out.close();
+            Utils.writeAtomically(indexFile, bytes.toByteArray());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        indexTime = Stat.of(indexFile).mtime;
+        dirty = false;
+    }
+
+    /** Return the sorted names of the files staged for addition. */
+    List<String> stagedFiles() {
+        return namesWith(ADDED);
+    }
+
+    /** Return the sorted names of the files staged for removal. */
+    List<String> removedFiles() {
+        return namesWith(REMOVED);
+    }
+
+    /** Return true if any file is staged for addition or removal. */
+    boolean hasStagedChanges() {
+        for (Entry entry : entries.values()) {
+            if (entry.flags != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return true if FILENAME is staged for addition. */
+    boolean isStaged(String fileName) {
+        Entry entry = entries.get(fileName);
+        return entry != null && entry.flags == ADDED;
+    }
+
+    /** Return the blob staged for FILENAME, null if it is not staged. */
+    String stagedBlob(String fileName) {
+        return isStaged(fileName) ? entries.get(fileName).blobId : null;
+    }
+
+    /**
+     * Stage a file for addition.
+     *
+     * @param fileName The file
+     * @param blobId The blob of its contents
+     * @param stat The stat data of the working file that was hashed
+     */
+    void stage(String fileName, String blobId, Stat stat) {
+        put(fileName, new Entry(blobId, stat, ADDED));
+    }
+
+    /**
+     * Record that a file matches the head commit, dropping any stage flag.
+     *
+     * @param fileName The file
+     * @param blobId The blob of its contents
+     * @param stat The stat data of the working file that was hashed
+     */
+    void track(String fileName, String blobId, Stat stat) {
+        put(fileName, new Entry(blobId, stat, (byte) 0));
+    }
+
+    /**
+     * Stage a file for removal.
+     *
+     * @param fileName The file
+     * @param blobId The blob of the file in the head commit
+     */
+    void stageRemoval(String fileName, String blobId) {
+        put(fileName, new Entry(blobId, Stat.NONE, REMOVED));
+    }
+
+    /** Drop FILENAME from the staging area. */
+    void unstage(String fileName) {
+        if (entries.remove(fileName) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Clear the staging area. Files staged for addition keep their
+     * entry as cached hashes; files staged for removal are dropped.
+     */
+    void clearStaging() {
+        for (String fileName : new ArrayList<>(entries.keySet())) {
+            Entry entry = entries.get(fileName);
+            if (entry.flags == REMOVED) {
+                unstage(fileName);
+            } else if (entry.flags == ADDED) {
+                put(fileName, new Entry(entry.blobId, entry.stat, (byte) 0));
+            }
+        }
+    }
+
+    /**
+     * Get the blob id of a working file, hashing it only if its stat data
+     * differs from the cached entry.
+     *
+     * @param fileName The name of the file in the index
+     * @param file The working file
+     * @return The SHA-1 hash of its contents
+     */
+    String hash(String fileName, File file) {
+        return hash(fileName, file, Stat.of(file));
+    }
+
+    /**
+     * Get the blob id of a working file, hashing it only if STAT differs
+     * from the cached entry or the entry is racily clean.
+     *
+     * @param fileName The name of the file in the index
+     * @param file The working file
+     * @param stat The stat data of the working file, read before hashing
+     * @return The SHA-1 hash of its contents
+     */
+    String hash(String fileName, File file, Stat stat) {
+        String blobId = cachedHash(fileName, stat);
+        if (blobId == null) {
+            blobId = Utils.sha1(file);
+            hashed(fileName, blobId, stat);
+        }
+        return blobId;
+    }
+
+    /**
+     * Get the cached blob id of a working file without hashing it.
+     *
+     * @param fileName The name of the file in the index
+     * @param stat The stat data of the working file
+     * @return The cached hash, null if the file must be hashed
+     */
+    String cachedHash(String fileName, Stat stat) {
+        Entry entry = entries.get(fileName);
+        if (!isClean(entry, stat)) {
+            return null;
+        }
+        cachedCount++;
+        return entry.blobId;
+    }
+
+    /**
+     * Record the hash of a working file, which was read after STAT was.
+     * The hash is cached unless the path is staged.
+     *
+     * @param fileName The name of the file in the index
+     * @param blobId The SHA-1 hash of its contents
+     * @param stat The stat data of the working file
+     */
+    void hashed(String fileName, String blobId, Stat stat) {
+        hashedCount++;
+        remember(fileName, blobId, stat);
+    }
+
+    /**
+     * Get the blob ids of many working files. Files whose stat data differs
+     * from the cached entry are hashed together by the HashService.
+     *
+     * @param fileNames The names of the files in the index
+     * @param dir The working directory holding them
+     * @return The SHA-1 hash of each file that exists, by name in sorted order
+     */
+    TreeMap<String, String> hashAll(Collection<String> fileNames, File dir) {
+        TreeMap<String, String> result = new TreeMap<>();
+        List<String> toHash = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        List<Stat> stats = new ArrayList<>();
+        for (String fileName : fileNames) {
+            File file = Utils.join(dir, fileName);
+            Stat stat = Stat.of(file);
+            if (stat == Stat.NONE) {
+                continue;
+            }
+            Entry entry = entries.get(fileName);
+            if (isClean(entry, stat)) {
+                cachedCount++;
+                result.put(fileName, entry.blobId);
+            } else {
+                toHash.add(fileName);
+                files.add(file);
+                stats.add(stat);
+            }
+        }
+        List<String> blobIds = HashService.hash(files);
+        hashedCount += files.size();
+        for (int i = 0; i < toHash.size(); i++) {
+            remember(toHash.get(i), blobIds.get(i), stats.get(i));
+            result.put(toHash.get(i), blobIds.get(i));
+        }
+        return result;
+    }
+
+    /** Return true if ENTRY caches the hash of a file with stat data STAT. */
+    private boolean isClean(Entry entry, Stat stat) {
+        return entry != null && entry.flags != REMOVED && entry.stat.matches(stat)
+                && entry.stat.mtime < indexTime;
+    }
+
+    /** Cache BLOBID as the hash of FILENAME with stat data STAT, unless
+     *  the path is staged. */
+    private void remember(String fileName, String blobId, Stat stat) {
+        Entry entry = entries.get(fileName);
+        if (entry == null || entry.flags == 0) {
+            put(fileName, new Entry(blobId, stat, (byte) 0));
+        }
+    }
+
+    /** Return the number of working files hashed by this process. */
+    static long hashedCount() {
+        return hashedCount;
+    }
+
+    /** Return the number of working files whose hash came from the stat cache. */
+    static long cachedCount() {
+        return cachedCount;
+    }
+
+    /** Set the entry of FILENAME to ENTRY. */
+    private void put(String fileName, Entry entry) {
+        entries.put(fileName, entry);
+        dirty = true;
+    }
+
+    /** Return the sorted names of entries with exactly the FLAGS. */
+    private List<String> namesWith(byte flags) {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (e.getValue().flags == flags) {
+                names.add(e.getKey());
+            }
+        }
+        return names;
+    }
+}
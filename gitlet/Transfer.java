@@ -0,0 +1,515 @@
+package gitlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Copies the objects of a set of commits from one repository into
+ *  another, as push and fetch do.
+ *
+ *  The transfer is planned first. The destination advertises the tips of
+ *  its branches, and every tree and blob under them is taken as present
+ *  without looking it up. The commits are then walked down to their
+ *  blobs, and every other object is looked up in the destination once,
+ *  so the plan holds each missing object once however many commits
+ *  share it. The plan can be printed as a manifest instead of run. The
+ *  objects are then copied in waves on a bounded pool of worker threads:
+ *  all blobs, then the trees in order of height, so that a tree is only
+ *  written once everything under it is, and last the commits, on one
+ *  thread, since each is added to the commit indexes. Each object is on
+ *  disk when its copy returns, so refs may be moved once run returns.
+ *
+ *  A transfer to a repository in another process, reached by PackClient
+ *  or PackServer, is planned without a destination store: the tips are
+ *  read from the source, which has the ones the two sides share, and the
+ *  plan is then sent to the destination, which answers in one batch
+ *  which of its objects it has. What is left is streamed as a pack: each
+ *  object as [type][id][length][stored bytes], ended by a type of 0, in
+ *  the same order as a local copy, so that the receiving side can write
+ *  each object as it arrives, and check that everything it refers to
+ *  arrived before it.
+ *
+ *  The number of workers is the gitlet.transferParallelism system
+ *  property, or the number of available processors if it is not set.
+ *  With gitlet.progress set, progress is printed to standard error.
+ *
+ *  @author Chen
+ */
+class Transfer {
+
+    /** System property giving the number of copying threads. */
+    static final String PARALLELISM_PROPERTY = "gitlet.transferParallelism";
+    /** System property that makes transfers report progress. */
+    static final String PROGRESS_PROPERTY = "gitlet.progress";
+    /** Nanoseconds between two progress reports. */
+    private static final long PROGRESS_INTERVAL = 1_000_000_000L;
+
+    /** Type marking the end of a pack. */
+    private static final byte END = 0;
+
+    /** Number of objects copied by this process. */
+    private static final AtomicLong COPIED_OBJECTS = new AtomicLong();
+    /** Number of stored bytes copied by this process. */
+    private static final AtomicLong COPIED_BYTES = new AtomicLong();
+
+    /** The object store to copy from. */
+    private final ObjectStore from;
+    /** The object store to copy into, null if it is in another process. */
+    private final ObjectStore to;
+    /** The blobs to copy. */
+    private final Set<String> blobs = new LinkedHashSet<>();
+    /** The trees to copy, by height: a tree holding only files has height 1. */
+    private final List<List<String>> trees = new ArrayList<>();
+    /** The commits to copy. */
+    private final List<String> commits = new ArrayList<>();
+    /** Height of each tree walked, 0 for trees the destination has. */
+    private final Map<String, Integer> heights = new HashMap<>();
+    /** The tips advertised by the destination. */
+    private final List<String> tips = new ArrayList<>();
+    /** Trees the destination is known to have. */
+    private final Set<String> haveTrees = new HashSet<>();
+    /** Blobs the destination is known to have. */
+    private final Set<String> haveBlobs = new HashSet<>();
+
+    /** Objects copied by this transfer. */
+    private final AtomicLong objects = new AtomicLong();
+    /** Stored bytes copied by this transfer. */
+    private final AtomicLong bytes = new AtomicLong();
+    /** Time the copying started, in nanoseconds. */
+    private long start;
+    /** Time of the last progress report, in nanoseconds. */
+    private long lastReport;
+
+    /** The .gitlet directory to copy from. */
+    private final File fromDir;
+    /** The .gitlet directory to copy into, null if it is in another process. */
+    private final File toDir;
+
+    private Transfer(File fromDir, File toDir) {
+        this.from = ObjectStore.of(fromDir);
+        this.to = toDir == null ? null : ObjectStore.of(toDir);
+        this.fromDir = fromDir;
+        this.toDir = toDir;
+    }
+
+    /**
+     * Plan the copy of some commits and every object under them that
+     * the destination does not have.
+     *
+     * @param fromDir The .gitlet directory to copy from
+     * @param toDir The .gitlet directory to copy into
+     * @param commitIds The commits to copy
+     * @param tips The commits at the tips of the destination's branches
+     * @return The planned transfer
+     */
+    static Transfer plan(File fromDir, File toDir, Collection<String> commitIds,
+                         Collection<String> tips) {
+        Transfer transfer = new Transfer(fromDir, toDir);
+        for (String tip : tips) {
+            transfer.have(tip);
+        }
+        for (String id : commitIds) {
+            if (toDir == null || !transfer.to.contains(ObjectStore.COMMIT, id)) {
+                transfer.commits.add(id);
+                transfer.walk(CommitCache.instance().get(fromDir, id).getTree());
+            }
+        }
+        // Parents first, so that every commit arrives after its history.
+        CommitGraph graph = CommitGraph.of(fromDir);
+        transfer.commits.sort(Comparator.comparingInt(id -> graph.node(id).generation));
+        return transfer;
+    }
+
+    /**
+     * Plan the copy of some commits into a repository in another
+     * process. Every object not under the tips is planned; readAnswer
+     * drops those the destination turns out to have. The destination can
+     * only check commits in the current format, so a plan holding a
+     * commit made by an older gitlet is refused with a GitletException.
+     *
+     * @param fromDir The .gitlet directory to copy from
+     * @param commitIds The commits to copy
+     * @param tips The commits at the tips of the destination's branches
+     * @return The planned transfer
+     */
+    static Transfer plan(File fromDir, Collection<String> commitIds, Collection<String> tips) {
+        Transfer transfer = plan(fromDir, null, commitIds, tips);
+        for (String id : transfer.commits) {
+            if (!Commit.isCurrentFormat(transfer.from.read(ObjectStore.COMMIT, id))) {
+                throw Utils.error("Commit %s was made by an older version of gitlet and "
+                        + "cannot be sent over gitlet://; use a directory remote.",
+                        id.substring(0, 7));
+            }
+        }
+        return transfer;
+    }
+
+    /**
+     * Take everything under a tip of the destination as present. The
+     * trees are read from the destination, so the tip need not be in the
+     * source, and a subtree shared between tips is read once. When the
+     * destination is in another process they are read from the source,
+     * and a tip the source does not have is ignored.
+     *
+     * @param tip The id of the commit at the tip
+     */
+    private void have(String tip) {
+        ObjectStore store = to != null ? to : from;
+        if (tips.contains(tip) || !store.contains(ObjectStore.COMMIT, tip)) {
+            return;
+        }
+        tips.add(tip);
+        haveTree(CommitCache.instance().get(to != null ? toDir : fromDir, tip).getTree());
+    }
+
+    /** Take the tree ID of the destination and everything under it as present. */
+    private void haveTree(String id) {
+        if (!haveTrees.add(id)) {
+            return;
+        }
+        Tree tree = Tree.read(to != null ? to : from, id);
+        haveBlobs.addAll(tree.blobIds());
+        for (String subtreeId : tree.subtreeIds()) {
+            haveTree(subtreeId);
+        }
+    }
+
+    /**
+     * Collect a tree and everything under it that the destination lacks.
+     * A tree the destination has is not read, since everything under it
+     * was written before it. Each object is looked up at most once.
+     *
+     * @param id The id of the tree
+     * @return The height of the tree, 0 if the destination has it
+     */
+    private int walk(String id) {
+        Integer known = heights.get(id);
+        if (known != null) {
+            return known;
+        }
+        int height = 0;
+        if (!haveTrees.contains(id) && (to == null || !to.contains(ObjectStore.TREE, id))) {
+            Tree tree = Tree.read(from, id);
+            for (String blobId : tree.blobIds()) {
+                if (haveBlobs.contains(blobId) || blobs.contains(blobId)) {
+                    continue;
+                }
+                if (to != null && to.contains(ObjectStore.BLOB, blobId)) {
+                    haveBlobs.add(blobId);
+                } else {
+                    blobs.add(blobId);
+                }
+            }
+            for (String subtreeId : tree.subtreeIds()) {
+                height = Math.max(height, walk(subtreeId));
+            }
+            height++;
+            while (trees.size() < height) {
+                trees.add(new ArrayList<>());
+            }
+            trees.get(height - 1).add(id);
+        }
+        heights.put(id, height);
+        return height;
+    }
+
+    /** Return the number of objects this transfer copies. */
+    int size() {
+        int size = blobs.size() + commits.size();
+        for (List<String> wave : trees) {
+            size += wave.size();
+        }
+        return size;
+    }
+
+    /**
+     * Return the plan as a manifest: a line for each tip the destination
+     * advertised, then a line for each object to copy in the order it is
+     * copied, and last the number of objects.
+     */
+    String manifest() {
+        StringBuilder manifest = new StringBuilder();
+        for (String tip : tips) {
+            manifest.append("have ").append(tip).append("\n");
+        }
+        for (String id : blobs) {
+            manifest.append("blob ").append(id).append("\n");
+        }
+        for (List<String> wave : trees) {
+            for (String id : wave) {
+                manifest.append("tree ").append(id).append("\n");
+            }
+        }
+        for (String id : commits) {
+            manifest.append("commit ").append(id).append("\n");
+        }
+        manifest.append(size()).append(" objects to copy");
+        return manifest.toString();
+    }
+
+    /**
+     * Copy every planned object, returning once all are on disk.
+     */
+    void run() {
+        start = System.nanoTime();
+        lastReport = start;
+        int parallelism = Math.max(1, Integer.getInteger(PARALLELISM_PROPERTY,
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try {
+            copyAll(pool, ObjectStore.BLOB, blobs);
+            for (List<String> wave : trees) {
+                copyAll(pool, ObjectStore.TREE, wave);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        for (String id : commits) {
+            copy(ObjectStore.COMMIT, id);
+        }
+        if (Boolean.getBoolean(PROGRESS_PROPERTY)) {
+            report("Copied");
+        }
+    }
+
+    /**
+     * Copy objects of one type on the worker pool, returning once all
+     * are copied.
+     *
+     * @param pool The worker pool
+     * @param type The type of the objects
+     * @param ids The ids of the objects
+     */
+    private void copyAll(ExecutorService pool, byte type, Collection<String> ids) {
+        List<Future<?>> copies = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            copies.add(pool.submit(() -> copy(type, id)));
+        }
+        try {
+            for (Future<?> copy : copies) {
+                copy.get();
+            }
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw new IllegalArgumentException(excp.getCause());
+        }
+    }
+
+    /** Copy the object ID of the given TYPE and count it. */
+    private void copy(byte type, String id) {
+        count(from.copyTo(to, type, id));
+        progress("Copying");
+    }
+
+    /** Count an object of SIZE stored bytes as copied. */
+    private void count(long size) {
+        objects.incrementAndGet();
+        bytes.addAndGet(size);
+        COPIED_OBJECTS.incrementAndGet();
+        COPIED_BYTES.addAndGet(size);
+    }
+
+    /** Report progress after VERB if it is due and was asked for. */
+    private void progress(String verb) {
+        if (Boolean.getBoolean(PROGRESS_PROPERTY)) {
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (now - lastReport >= PROGRESS_INTERVAL) {
+                    lastReport = now;
+                    report(verb);
+                }
+            }
+        }
+    }
+
+    /**
+     * Send the plan to the destination: the number of objects, then the
+     * type and id of each, in the order they are copied.
+     *
+     * @param out The stream to the destination
+     * @throws IOException If the connection fails
+     */
+    void sendPlan(DataOutputStream out) throws IOException {
+        out.writeInt(size());
+        for (String id : blobs) {
+            out.writeByte(ObjectStore.BLOB);
+            out.writeUTF(id);
+        }
+        for (List<String> wave : trees) {
+            for (String id : wave) {
+                out.writeByte(ObjectStore.TREE);
+                out.writeUTF(id);
+            }
+        }
+        for (String id : commits) {
+            out.writeByte(ObjectStore.COMMIT);
+            out.writeUTF(id);
+        }
+        out.flush();
+    }
+
+    /**
+     * Answer a plan sent by sendPlan with whether STORE has each object.
+     *
+     * @param in The stream from the source
+     * @param out The stream to the source
+     * @param store The store of the destination
+     * @throws IOException If the connection fails
+     */
+    static void answerPlan(DataInputStream in, DataOutputStream out, ObjectStore store)
+            throws IOException {
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            byte type = in.readByte();
+            String id = in.readUTF();
+            out.writeBoolean(store.contains(type, id));
+        }
+        out.flush();
+    }
+
+    /**
+     * Read the answer to sendPlan and drop the objects the destination has.
+     *
+     * @param in The stream from the destination
+     * @throws IOException If the connection fails
+     */
+    void readAnswer(DataInputStream in) throws IOException {
+        for (Iterator<String> it = blobs.iterator(); it.hasNext();) {
+            it.next();
+            if (in.readBoolean()) {
+                it.remove();
+            }
+        }
+        for (List<String> wave : trees) {
+            for (Iterator<String> it = wave.iterator(); it.hasNext();) {
+                it.next();
+                if (in.readBoolean()) {
+                    it.remove();
+                }
+            }
+        }
+        for (Iterator<String> it = commits.iterator(); it.hasNext();) {
+            it.next();
+            if (in.readBoolean()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Stream every planned object to the destination as a pack. Each
+     * object is copied from its loose file or the pack straight into the
+     * stream, so no more than one buffer of it is in memory.
+     *
+     * @param out The stream to the destination
+     * @throws IOException If the connection fails
+     */
+    void sendPack(DataOutputStream out) throws IOException {
+        start = System.nanoTime();
+        lastReport = start;
+        WritableByteChannel channel = Channels.newChannel(out);
+        for (String id : blobs) {
+            send(out, channel, ObjectStore.BLOB, id);
+        }
+        for (List<String> wave : trees) {
+            for (String id : wave) {
+                send(out, channel, ObjectStore.TREE, id);
+            }
+        }
+        for (String id : commits) {
+            send(out, channel, ObjectStore.COMMIT, id);
+        }
+        out.writeByte(END);
+        out.flush();
+        if (Boolean.getBoolean(PROGRESS_PROPERTY)) {
+            report("Sent");
+        }
+    }
+
+    /** Send the object ID of the given TYPE on OUT, whose bytes are
+     *  also written through CHANNEL, and count it. */
+    private void send(DataOutputStream out, WritableByteChannel channel, byte type, String id)
+            throws IOException {
+        long size = from.storedSize(type, id);
+        out.writeByte(type);
+        out.writeUTF(id);
+        out.writeLong(size);
+        from.transferTo(type, id, channel);
+        count(size);
+        progress("Sending");
+    }
+
+    /**
+     * Write the objects of a pack sent by sendPack into a store as they
+     * arrive. Each is on disk before the next is read, so refs may be
+     * moved once this returns.
+     * Throws IllegalArgumentException if the pack is malformed.
+     *
+     * @param in The stream from the source
+     * @param store The store of the destination
+     * @return The number of objects received
+     * @throws IOException If the connection fails
+     */
+    static int receivePack(DataInputStream in, ObjectStore store) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(in);
+        int received = 0;
+        while (true) {
+            byte type = in.readByte();
+            if (type == END) {
+                return received;
+            }
+            String id = in.readUTF();
+            long size = in.readLong();
+            if (type != ObjectStore.BLOB && type != ObjectStore.TREE
+                    && type != ObjectStore.COMMIT || !ObjectId.isValid(id) || size < 0) {
+                throw new IllegalArgumentException("malformed pack");
+            }
+            store.receive(type, id, channel, size);
+            received++;
+            COPIED_OBJECTS.incrementAndGet();
+            COPIED_BYTES.addAndGet(size);
+        }
+    }
+
+    /** Print the progress of the transfer to standard error, after VERB. */
+    private void report(String verb) {
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        System.err.printf("%s objects: %d/%d, %d bytes, %.0f objects/s, %.0f bytes/s%n",
+                verb, objects.get(), size(), bytes.get(),
+                objects.get() / seconds, bytes.get() / seconds);
+    }
+
+    /** Return the number of objects copied by this process. */
+    static long copiedObjects() {
+        return COPIED_OBJECTS.get();
+    }
+
+    /** Return the number of stored bytes copied by this process. */
+    static long copiedBytes() {
+        return COPIED_BYTES.get();
+    }
+}
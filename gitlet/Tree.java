@@ -0,0 +1,472 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+/** A tree object: the contents of one directory of a commit, as the blob
+ *  id of each file and the tree id of each subdirectory in it. A commit
+ *  points at the tree of the working directory. Since a tree is named by
+ *  the hash of its contents, a subdirectory left unchanged by a commit
+ *  keeps its id and is shared with the parent commit, and a commit that
+ *  changes one file writes only the trees on the path to that file.
+ *
+ *  Paths of tracked files are relative to the working directory, with
+ *  "/" between directory names.
+ *
+ *  Decoded trees are kept in a process-wide cache bounded like the commit
+ *  cache. A tree's id fixes its contents, so the cache is keyed by id
+ *  alone, and the tracked files of consecutive commits are read through
+ *  the same decoded subtrees rather than copied into a map per commit.
+ *
+ *  Layout: "GTRE", version, count, then for each entry in sorted order of
+ *  name its kind (blob or tree), the length-prefixed UTF-8 name and the
+ *  20-byte id.
+ *
+ *  @author Chen
+ */
+class Tree {
+
+    /** Magic number at the head of an encoded tree. */
+    private static final int MAGIC = 0x47545245;        // "GTRE"
+    /** Version of the tree format. */
+    private static final byte VERSION = 1;
+    /** Kind of an entry naming a file. */
+    private static final byte BLOB_ENTRY = 1;
+    /** Kind of an entry naming a subdirectory. */
+    private static final byte TREE_ENTRY = 2;
+
+    /** System property giving the maximum number of cached trees. */
+    static final String CACHE_SIZE_PROPERTY = "gitlet.treeCacheSize";
+    /** Maximum number of cached trees when CACHE_SIZE_PROPERTY is not set. */
+    private static final int DEFAULT_CACHE_SIZE = 4096;
+    /** Maximum number of cached trees. */
+    private static final int CACHE_SIZE =
+            Integer.getInteger(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE);
+
+    /** Decoded trees by id in access order, least recently used first. */
+    private static final LinkedHashMap<String, Tree> CACHE =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Tree> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+    /** Number of tree reads answered from the cache. */
+    private static long cacheHits;
+    /** Number of tree reads that decoded a stored tree. */
+    private static long cacheMisses;
+
+    /** One file or subdirectory of a tree. */
+    private static class Entry {
+        /** BLOB_ENTRY or TREE_ENTRY. */
+        final byte kind;
+        /** The id of the blob or tree. */
+        final String id;
+
+        Entry(byte kind, String id) {
+            this.kind = kind;
+            this.id = id;
+        }
+
+        /** Return true if this entry names a subdirectory. */
+        boolean isTree() {
+            return kind == TREE_ENTRY;
+        }
+    }
+
+    /** Entries by name. */
+    private final TreeMap<String, Entry> entries;
+    /** Number of files under this tree, -1 until counted. */
+    private int fileCount = -1;
+
+    private Tree(TreeMap<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Read a tree, from the cache or else from the object store.
+     * The tree is shared, so its entries must not be modified.
+     *
+     * @param store The object store
+     * @param id The id of the tree
+     * @return The tree
+     */
+    static Tree read(ObjectStore store, String id) {
+        synchronized (CACHE) {
+            Tree tree = CACHE.get(id);
+            if (tree != null) {
+                cacheHits++;
+                return tree;
+            }
+            cacheMisses++;
+        }
+        Tree tree = decode(store.read(ObjectStore.TREE, id));
+        if (CACHE_SIZE > 0) {
+            synchronized (CACHE) {
+                CACHE.put(id, tree);
+            }
+        }
+        return tree;
+    }
+
+    /** Return the number of tree reads answered from the cache. */
+    static long cacheHits() {
+        synchronized (CACHE) {
+            return cacheHits;
+        }
+    }
+
+    /** Return the number of tree reads that decoded a stored tree. */
+    static long cacheMisses() {
+        synchronized (CACHE) {
+            return cacheMisses;
+        }
+    }
+
+    /**
+     * Write the tree of a set of tracked files, with all its subtrees.
+     *
+     * @param store The object store
+     * @param trackedFiles The blob id of each tracked path
+     * @return The id of the root tree
+     */
+    static String write(ObjectStore store, Map<String, String> trackedFiles) {
+        return update(store, null, trackedFiles);
+    }
+
+    /**
+     * Write the tree obtained by applying changes to a tree. Only the trees
+     * of directories holding a changed path are read and written again;
+     * every other subtree keeps its id. A path with an empty, "." or ".."
+     * part is refused with a GitletException before any tree is written.
+     *
+     * @param store The object store
+     * @param baseId The id of the tree to change, null for the empty tree
+     * @param changes The new blob id of each changed path, null for a path
+     *                that is removed
+     * @return The id of the new root tree
+     */
+    static String update(ObjectStore store, String baseId, Map<String, String> changes) {
+        for (String path : changes.keySet()) {
+            for (String name : path.split("/", -1)) {
+                if (!isValidName(name)) {
+                    throw Utils.error("Invalid file name: %s", path);
+                }
+            }
+        }
+        return update(store, baseId, changes, true);
+    }
+
+    /**
+     * Apply changes to a tree and write the result, as update does. A tree
+     * other than the root that is left empty is dropped.
+     *
+     * @param store The object store
+     * @param baseId The id of the tree to change, null for the empty tree
+     * @param changes The changes, by path relative to this tree
+     * @param root True for the root tree
+     * @return The id of the new tree, null if it is empty and not the root
+     */
+    private static String update(ObjectStore store, String baseId,
+                                 Map<String, String> changes, boolean root) {
+        TreeMap<String, Entry> entries = baseId == null
+                ? new TreeMap<>() : new TreeMap<>(read(store, baseId).entries);
+        Map<String, String> fileChanges = new HashMap<>();
+        Map<String, Map<String, String>> dirChanges = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                fileChanges.put(path, change.getValue());
+            } else {
+                dirChanges.computeIfAbsent(path.substring(0, slash), k -> new HashMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+
+        // Subdirectories go first, so that a directory emptied of its files
+        // can be replaced by a file of the same name.
+        for (Map.Entry<String, Map<String, String>> dir : dirChanges.entrySet()) {
+            Entry old = entries.get(dir.getKey());
+            String subId = update(store, old != null && old.isTree() ? old.id : null,
+                    dir.getValue(), false);
+            if (subId != null) {
+                entries.put(dir.getKey(), new Entry(TREE_ENTRY, subId));
+            } else if (old != null && old.isTree()) {
+                entries.remove(dir.getKey());
+            }
+        }
+        for (Map.Entry<String, String> file : fileChanges.entrySet()) {
+            Entry old = entries.get(file.getKey());
+            if (file.getValue() != null) {
+                entries.put(file.getKey(), new Entry(BLOB_ENTRY, file.getValue()));
+            } else if (old != null && !old.isTree()) {
+                entries.remove(file.getKey());
+            }
+        }
+
+        if (entries.isEmpty() && !root) {
+            return null;
+        }
+        byte[] contents = new Tree(entries).encode();
+        String id = Utils.sha1(contents);
+        store.write(ObjectStore.TREE, id, contents);
+        return id;
+    }
+
+    /**
+     * Get the files under a tree as a read-only map from path to blob id.
+     * The map is a view of the tree: a lookup reads only the trees on the
+     * path, and nothing is copied.
+     *
+     * @param store The object store
+     * @param id The id of the tree
+     * @return The blob id of each path under the tree
+     */
+    static Map<String, String> files(ObjectStore store, String id) {
+        return new FileMap(store, id);
+    }
+
+    /**
+     * Find the blob of a file under this tree.
+     *
+     * @param store The object store holding the subtrees
+     * @param path The path of the file relative to this tree
+     * @return Its blob id, null if there is no such file
+     */
+    private String blobAt(ObjectStore store, String path) {
+        Tree tree = this;
+        int start = 0;
+        while (true) {
+            int slash = path.indexOf('/', start);
+            Entry entry = tree.entries.get(slash < 0
+                    ? path.substring(start) : path.substring(start, slash));
+            if (entry == null) {
+                return null;
+            } else if (slash < 0) {
+                return entry.isTree() ? null : entry.id;
+            } else if (!entry.isTree()) {
+                return null;
+            }
+            tree = read(store, entry.id);
+            start = slash + 1;
+        }
+    }
+
+    /** Return the number of files under this tree, reading subtrees from
+     *  STORE the first time. */
+    private int fileCount(ObjectStore store) {
+        if (fileCount < 0) {
+            int count = 0;
+            for (Entry entry : entries.values()) {
+                count += entry.isTree() ? read(store, entry.id).fileCount(store) : 1;
+            }
+            fileCount = count;
+        }
+        return fileCount;
+    }
+
+    /** The files under a tree, as returned by files. */
+    private static class FileMap extends AbstractMap<String, String> {
+        /** The object store holding the trees. */
+        private final ObjectStore store;
+        /** The id of the root tree. */
+        private final String id;
+
+        FileMap(ObjectStore store, String id) {
+            this.store = store;
+            this.id = id;
+        }
+
+        @Override
+        public String get(Object path) {
+            return path instanceof String ? read(store, id).blobAt(store, (String) path) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object path) {
+            return get(path) != null;
+        }
+
+        @Override
+        public int size() {
+            return read(store, id).fileCount(store);
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new FileIterator(store, read(store, id));
+                }
+
+                @Override
+                public int size() {
+                    return FileMap.this.size();
+                }
+            };
+        }
+    }
+
+    /** Iterates over the files under a tree, depth first, in sorted order
+     *  of names within each directory. */
+    private static class FileIterator implements Iterator<Map.Entry<String, String>> {
+        /** The object store holding the trees. */
+        private final ObjectStore store;
+        /** The directories being walked, innermost first: the path prefix
+         *  of each and its remaining entries. */
+        private final Deque<Map.Entry<String, Iterator<Map.Entry<String, Entry>>>> dirs =
+                new ArrayDeque<>();
+        /** The next file, null when there are no more. */
+        private Map.Entry<String, String> next;
+
+        FileIterator(ObjectStore store, Tree root) {
+            this.store = store;
+            dirs.push(new AbstractMap.SimpleImmutableEntry<>("", root.entries.entrySet().iterator()));
+            advance();
+        }
+
+        /** Find the next file. */
+        private void advance() {
+            next = null;
+            while (next == null && !dirs.isEmpty()) {
+                Map.Entry<String, Iterator<Map.Entry<String, Entry>>> dir = dirs.peek();
+                if (!dir.getValue().hasNext()) {
+                    dirs.pop();
+                    continue;
+                }
+                Map.Entry<String, Entry> e = dir.getValue().next();
+                String path = dir.getKey() + e.getKey();
+                if (e.getValue().isTree()) {
+                    dirs.push(new AbstractMap.SimpleImmutableEntry<>(path + "/",
+                            read(store, e.getValue().id).entries.entrySet().iterator()));
+                } else {
+                    next = new AbstractMap.SimpleImmutableEntry<>(path, e.getValue().id);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> result = next;
+            advance();
+            return result;
+        }
+    }
+
+    /** Return the ids of the blobs of the files directly in this tree. */
+    List<String> blobIds() {
+        List<String> ids = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (!entry.isTree()) {
+                ids.add(entry.id);
+            }
+        }
+        return ids;
+    }
+
+    /** Return the ids of the trees of the subdirectories of this tree. */
+    List<String> subtreeIds() {
+        List<String> ids = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.isTree()) {
+                ids.add(entry.id);
+            }
+        }
+        return ids;
+    }
+
+    /** Return the encoded form of this tree. */
+    byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeByte(e.getValue().kind);
+                out.writeInt(name.length);
+                out.write(name);
+                out.write(ObjectId.fromHex(e.getValue().id).toByteArray());
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw Utils.error("Internal error encoding tree.");
+        }
+    }
+
+    /**
+     * Decode a tree read from the object store.
+     * Throws GitletException if the tree is malformed or an entry name
+     * would lead outside its directory.
+     *
+     * @param bytes The stored tree
+     * @return The tree
+     */
+    static Tree decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (bytes.length < 9 || in.getInt() != MAGIC || in.get() != VERSION) {
+            throw Utils.error("Corrupt tree object.");
+        }
+        try {
+            int count = in.getInt();
+            TreeMap<String, Entry> entries = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                byte kind = in.get();
+                int length = in.getInt();
+                if (kind != BLOB_ENTRY && kind != TREE_ENTRY
+                        || length < 0 || length > in.remaining() - ObjectId.RAW_LENGTH) {
+                    throw Utils.error("Corrupt tree object.");
+                }
+                byte[] name = new byte[length];
+                in.get(name);
+                String id = ObjectId.toHex(in, in.position());
+                in.position(in.position() + ObjectId.RAW_LENGTH);
+                String entryName = new String(name, StandardCharsets.UTF_8);
+                if (!isValidName(entryName)) {
+                    throw Utils.error("Corrupt tree object.");
+                }
+                entries.put(entryName, new Entry(kind, id));
+            }
+            return new Tree(entries);
+        } catch (BufferUnderflowException excp) {
+            throw Utils.error("Corrupt tree object.");
+        }
+    }
+
+    /** Return true if NAME can name an entry: one path component that
+     *  stays within its directory. */
+    private static boolean isValidName(String name) {
+        return !name.isEmpty() && !name.equals(".") && !name.equals("..")
+                && name.indexOf('/') < 0 && name.indexOf('\0') < 0;
+    }
+}
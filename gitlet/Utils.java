@@ -1,6 +1,7 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -9,14 +10,21 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Formatter;
 import java.util.List;
+import java.util.function.BooleanSupplier;
 
 
 /** Assorted utilities.
@@ -33,28 +41,50 @@ class Utils {
 
     /* SHA-1 HASH VALUES. */
 
+    /** A SHA-1 digest per thread, reset before each use. */
+    private static final ThreadLocal<MessageDigest> SHA1_DIGEST =
+        ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException excp) {
+                throw new IllegalArgumentException("System does not support SHA-1");
+            }
+        });
+
+    /** Lower-case hexadecimal digits, by value. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Returns the SHA-1 digest of this thread, reset. */
+    private static MessageDigest sha1Digest() {
+        MessageDigest md = SHA1_DIGEST.get();
+        md.reset();
+        return md;
+    }
+
+    /** Returns BYTES as a lower-case hexadecimal numeral. */
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
      *  be any mixture of byte arrays and Strings. */
     static String sha1(Object... vals) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            for (Object val : vals) {
-                if (val instanceof byte[]) {
-                    md.update((byte[]) val);
-                } else if (val instanceof String) {
-                    md.update(((String) val).getBytes(StandardCharsets.UTF_8));
-                } else {
-                    throw new IllegalArgumentException("improper type to sha1");
-                }
-            }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+        MessageDigest md = sha1Digest();
+        for (Object val : vals) {
+            if (val instanceof byte[]) {
+                md.update((byte[]) val);
+            } else if (val instanceof String) {
+                md.update(((String) val).getBytes(StandardCharsets.UTF_8));
+            } else {
+                throw new IllegalArgumentException("improper type to sha1");
             }
-            return result.toString();
-        } catch (NoSuchAlgorithmException excp) {
-            throw new IllegalArgumentException("System does not support SHA-1");
         }
+        return toHex(md.digest());
     }
 
     /** Returns the SHA-1 hash of the concatenation of the strings in
@@ -63,6 +93,64 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Size of the buffer through which files are hashed. */
+    private static final int HASH_BUFFER_SIZE = 1 << 16;
+
+    /** A reusable direct buffer per thread for hashing files. */
+    private static final ThreadLocal<ByteBuffer> HASH_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+
+    /** Returns the SHA-1 hash of the contents of FILE, read a buffer at a
+     *  time so that memory use does not grow with the size of FILE.
+     *  Throws IllegalArgumentException in case of problems. */
+    static String sha1(File file) {
+        try (FileChannel in = FileChannel.open(file.toPath(),
+                                               StandardOpenOption.READ)) {
+            return sha1(in, null);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the SHA-1 hash of the bytes remaining in IN, read through
+     *  a reusable direct buffer. If OUT is not null, the bytes are also
+     *  written to OUT as they are hashed. */
+    static String sha1(ReadableByteChannel in, WritableByteChannel out)
+        throws IOException {
+        MessageDigest md = sha1Digest();
+        ByteBuffer buf = HASH_BUFFER.get();
+        buf.clear();
+        while (in.read(buf) != -1) {
+            buf.flip();
+            md.update(buf);
+            if (out != null) {
+                buf.rewind();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+            buf.clear();
+        }
+        return toHex(md.digest());
+    }
+
+    /** Copies LENGTH bytes of IN, from POSITION on, to OUT with
+     *  FileChannel.transferTo, which lets the operating system move
+     *  the bytes without copying them through this process where it
+     *  can.  Returns the number of bytes copied. */
+    static long transfer(FileChannel in, long position, long length,
+                         WritableByteChannel out) throws IOException {
+        long done = 0;
+        while (done < length) {
+            long n = in.transferTo(position + done, length - done, out);
+            if (n <= 0 && position + done >= in.size()) {
+                throw new IOException("unexpected end of file");
+            }
+            done += n;
+        }
+        return done;
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -136,6 +224,21 @@ class Utils {
         }
     }
 
+    /** Write CONTENTS to a temporary file next to FILE, then rename it over
+     *  FILE, so that readers see either the old or the new contents.
+     *  Throws IllegalArgumentException in case of problems. */
+    static void writeAtomically(File file, byte[] contents) {
+        File temp = new File(file.getPath() + ".tmp");
+        writeContents(temp, (Object) contents);
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /** Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
      *  Throws IllegalArgumentException in case of problems. */
     static <T extends Serializable> T readObject(File file,
@@ -220,6 +323,62 @@ class Utils {
         }
     }
 
+    /** Return an object of type T read from the serialized BYTES, casting it
+     *  to EXPECTEDCLASS. Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+
+
+    /* PROCESSES */
+
+    /** Milliseconds a detached gitlet process is given to start. */
+    private static final long START_TIMEOUT = 10_000;
+
+    /** Run gitlet.Main with ARGS in a new process in the working directory,
+     *  discarding its output, and wait until STARTED holds. Return false,
+     *  having stopped the process, if it exits or does not start in time.
+     *  Throws IllegalArgumentException in case of problems. */
+    static boolean startDetached(BooleanSupplier started, String... args) {
+        List<String> command = new ArrayList<>(List.of(
+                join(new File(System.getProperty("java.home")), "bin", "java").getPath(),
+                "-cp", System.getProperty("java.class.path"), "gitlet.Main"));
+        command.addAll(Arrays.asList(args));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.directory(Repository.CWD);
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        try {
+            Process process = builder.start();
+            process.getOutputStream().close();
+            long deadline = System.currentTimeMillis() + START_TIMEOUT;
+            while (!started.getAsBoolean()) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    process.destroy();
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+            return true;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
 
 
     /* MESSAGES AND ERROR REPORTING */
@@ -0,0 +1,91 @@
+package gitlet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Measures the size and throughput of object compression on a synthetic
+ *  corpus of text files, at several Deflate levels. Each file is stored
+ *  and read back through ObjectStore.compress and ObjectStore.decompress,
+ *  as add and checkout do. Run with "make bench".
+ *
+ *  @author Chen
+ */
+class CompressionBenchmark {
+
+    /** Number of files in the corpus. */
+    private static final int FILES = 400;
+    /** Approximate size of each file in bytes. */
+    private static final int FILE_SIZE = 32 * 1024;
+    /** Number of timed passes over the corpus at each level. */
+    private static final int PASSES = 5;
+
+    /** Words the corpus is made of, like those of source code and prose. */
+    private static final String[] WORDS = {
+        "the", "commit", "branch", "merge", "file", "static", "void", "return",
+        "if", "else", "for", "while", "String", "int", "new", "private", "public",
+        "class", "final", "List", "Map", "null", "true", "false", "import",
+        "gitlet", "Repository", "blob", "hash", "parent", "message", "of", "to",
+        "and", "a", "is", "in", "that", "with", "this", "on", "by", "from",
+    };
+
+    public static void main(String[] args) {
+        List<byte[]> corpus = corpus();
+        long rawBytes = 0;
+        for (byte[] file : corpus) {
+            rawBytes += file.length;
+        }
+        System.out.printf("corpus: %d text files, %d bytes%n", corpus.size(), rawBytes);
+        System.out.println("level     stored bytes   ratio   compress MB/s   decompress MB/s");
+        for (int level : new int[] {0, 1, 6, 9}) {
+            System.setProperty(ObjectStore.COMPRESSION_PROPERTY, String.valueOf(level));
+            List<byte[]> stored = new ArrayList<>();
+            for (byte[] file : corpus) {
+                stored.add(ObjectStore.compress(file));
+            }
+            long storedBytes = 0;
+            for (byte[] object : stored) {
+                storedBytes += object.length;
+            }
+            long start = System.nanoTime();
+            for (int pass = 0; pass < PASSES; pass++) {
+                for (byte[] file : corpus) {
+                    ObjectStore.compress(file);
+                }
+            }
+            double compressSeconds = (System.nanoTime() - start) / 1e9;
+            start = System.nanoTime();
+            for (int pass = 0; pass < PASSES; pass++) {
+                for (byte[] object : stored) {
+                    ObjectStore.decompress(object);
+                }
+            }
+            double decompressSeconds = (System.nanoTime() - start) / 1e9;
+            double megabytes = (double) rawBytes * PASSES / (1 << 20);
+            System.out.printf("%5d %16d %7.3f %15.1f %17.1f%n", level, storedBytes,
+                    (double) storedBytes / rawBytes,
+                    megabytes / compressSeconds, megabytes / decompressSeconds);
+        }
+    }
+
+    /** Return FILES files of text made of random lines of WORDS. */
+    private static List<byte[]> corpus() {
+        Random random = new Random(61);
+        List<byte[]> corpus = new ArrayList<>(FILES);
+        for (int i = 0; i < FILES; i++) {
+            StringBuilder text = new StringBuilder(FILE_SIZE + 128);
+            while (text.length() < FILE_SIZE) {
+                int indent = random.nextInt(4) * 4;
+                text.append(" ".repeat(indent));
+                int words = 3 + random.nextInt(9);
+                for (int w = 0; w < words; w++) {
+                    text.append(WORDS[random.nextInt(WORDS.length)]);
+                    text.append(w == words - 1 ? ";\n" : " ");
+                }
+            }
+            corpus.add(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return corpus;
+    }
+}
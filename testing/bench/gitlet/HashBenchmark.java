@@ -0,0 +1,103 @@
+package gitlet;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Formatter;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/** Micro-benchmarks of object hashing and id conversion, comparing the
+ *  current code with the way it used to be done. Each case is warmed up,
+ *  then timed over a fixed number of operations; the time and the bytes
+ *  allocated per operation are printed. Run with "make bench".
+ *
+ *  @author Chen
+ */
+class HashBenchmark {
+
+    /** Number of operations in the warm-up round of each case. */
+    private static final int WARMUP = 200_000;
+    /** Number of operations in each timed round. */
+    private static final int OPERATIONS = 1_000_000;
+
+    /** Sink for results, so that the work is not optimized away. */
+    private static int sink;
+
+    public static void main(String[] args) {
+        byte[] small = new byte[64];
+        new Random(61).nextBytes(small);
+        String id = Utils.sha1((Object) small);
+        ByteBuffer raw = ByteBuffer.wrap(ObjectId.fromHex(id).toByteArray());
+
+        System.out.println("operation                              ns/op     bytes/op");
+        run("sha1 64 bytes, new digest+Formatter", () -> oldSha1(small));
+        run("sha1 64 bytes, Utils.sha1", () -> Utils.sha1((Object) small));
+        run("raw id to hex, String.format", () -> oldToHex(raw));
+        run("raw id to hex, ObjectId.toHex", () -> ObjectId.toHex(raw, 0));
+        run("hex id to raw, Integer.parseInt", () -> oldToRaw(id));
+        run("hex id to raw, ObjectId.fromHex", () -> ObjectId.fromHex(id));
+        System.out.println("(sink " + sink + ")");
+    }
+
+    /** Time OPERATION and print one line of results labelled NAME. */
+    private static void run(String name, Supplier<Object> operation) {
+        for (int i = 0; i < WARMUP; i++) {
+            sink += operation.get().hashCode();
+        }
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            sink += operation.get().hashCode();
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = allocatedBytes() - bytesBefore;
+        System.out.printf("%-38s %7.1f %12s%n", name, (double) nanos / OPERATIONS,
+                bytes < 0 ? "n/a" : String.valueOf(bytes / OPERATIONS));
+    }
+
+    /** Return the bytes allocated so far by this thread, -1 if unknown. */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /** Utils.sha1 as it was: a new digest and a Formatter per call. */
+    private static String oldSha1(byte[] val) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(val);
+            Formatter result = new Formatter();
+            for (byte b : md.digest()) {
+                result.format("%02x", b);
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** The former PackFile.toHex. */
+    private static String oldToHex(ByteBuffer buf) {
+        StringBuilder hex = new StringBuilder(ObjectId.HEX_LENGTH);
+        for (int i = 0; i < ObjectId.RAW_LENGTH; i++) {
+            hex.append(String.format("%02x", buf.get(i)));
+        }
+        return hex.toString();
+    }
+
+    /** The former PackFile.toRaw. */
+    private static byte[] oldToRaw(String id) {
+        byte[] raw = new byte[ObjectId.RAW_LENGTH];
+        for (int i = 0; i < ObjectId.RAW_LENGTH; i++) {
+            raw[i] = (byte) Integer.parseInt(id.substring(2 * i, 2 * i + 2), 16);
+        }
+        return raw;
+    }
+}